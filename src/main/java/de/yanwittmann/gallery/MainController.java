@@ -1,10 +1,22 @@
 package de.yanwittmann.gallery;
 
+import de.yanwittmann.gallery.db.connection.DatabaseConnectionProvider;
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.PooledDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.CleanupComponent;
+import de.yanwittmann.gallery.media.MediaCursor;
+import de.yanwittmann.gallery.media.MediaCursorPage;
+import de.yanwittmann.gallery.media.MediaDirectoryWatcher;
+import de.yanwittmann.gallery.media.MediaIndexingResult;
 import de.yanwittmann.gallery.media.MediaService;
 import de.yanwittmann.gallery.media.config.ConfigField;
 import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.thumbnail.Thumbnail;
+import de.yanwittmann.gallery.media.thumbnail.ThumbnailCache;
+import de.yanwittmann.gallery.media.thumbnail.ThumbnailEncoder;
+import de.yanwittmann.gallery.media.thumbnail.ThumbnailPipeline;
+import de.yanwittmann.gallery.util.FileRangeWriter;
 import de.yanwittmann.gallery.util.FileWalkerUtils;
-import de.yanwittmann.gallery.util.ImageUtil;
 import org.apache.commons.io.FileUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -14,37 +26,83 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @SpringBootApplication
 @RestController
-@Import(de.yanwittmann.gallery.media.CleanupComponent.class)
+@Import(CleanupComponent.class)
 public class MainController {
 
     public static final Logger LOG = LoggerFactory.getLogger(MainController.class);
 
+    private static final int MAX_METADATA_IDS = 1000;
+
     private final MediaService mediaService;
+    private final ThumbnailCache thumbnailCache;
+    private final ThumbnailPipeline thumbnailPipeline;
+
+    public MainController(CleanupComponent cleanupComponent) {
+        this.thumbnailCache = new ThumbnailCache(MediaGalleryConfig.getThumbsDir(), MediaGalleryConfig.getThumbnailCacheMaxBytes());
+        this.thumbnailPipeline = new ThumbnailPipeline(thumbnailCache,
+                new ThumbnailEncoder(MediaGalleryConfig.getThumbnailFormat(), MediaGalleryConfig.getThumbnailJpegQuality()),
+                MediaGalleryConfig.getThumbnailPyramidSizes(), Runtime.getRuntime().availableProcessors());
 
-    public MainController() {
         LOG.info("Starting media service");
+        final boolean pregenerate = MediaGalleryConfig.isThumbnailPregenerationEnabled();
         try {
-            this.mediaService = new MediaService();
+            this.mediaService = new MediaService(mediaRow -> {
+                if (pregenerate) {
+                    thumbnailPipeline.enqueue(mediaRow.getFile(), mediaRow.isVideo(), getThumbnailSourceHash(mediaRow), getThumbnailSourceVersion(mediaRow));
+                }
+            });
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize media service: " + e.getMessage(), e);
         }
+        // the watcher and running scans write to the media table until they are stopped
+        cleanupComponent.beforeDatabaseClosed(mediaService::close);
+
+        // thumbnails of media without a fingerprint are stored by media id
+        final Map<Long, Long> migratedIds = mediaService.getMigratedIds();
+        if (!migratedIds.isEmpty()) {
+            try {
+                thumbnailCache.rekey(migratedIds);
+                mediaService.completeIdMigration();
+            } catch (IOException e) {
+                LOG.error("Failed to rekey cached thumbnails to the migrated media ids, they are retried on the next start", e);
+            }
+        }
 
-        ImageUtil.initializeThumbnailCleanup(MediaGalleryConfig.getThumbsDir());
+        if (mediaService.getSettings().get(ConfigField.WATCH_DIRECTORIES).equals(true)) {
+            try {
+                mediaService.startWatching(new MediaDirectoryWatcher(mediaService, MediaGalleryConfig.getWatchDebounceMillis(),
+                        MediaGalleryConfig.getWatchMaxDelayMillis(), MediaGalleryConfig.getWatchFallbackScanMillis()));
+            } catch (IOException e) {
+                LOG.error("Failed to watch media directories, new media will only be found by rescanning them", e);
+            }
+        }
     }
 
     @GetMapping("/media/page/count/{includeVideos}")
@@ -70,61 +128,221 @@ public class MainController {
                 .toString();
     }
 
+    /**
+     * @param metadata whether to include the metadata of the media on the page, as returned by
+     *                 {@link #getMediaMetadata(List)}, so that the page can be displayed without further requests.
+     */
     @GetMapping("/media/page/{page}/{orderBy}/{asc}/{includeVideos}")
-    public String getMedia(@PathVariable int page, @PathVariable String orderBy, @PathVariable boolean asc, @PathVariable boolean includeVideos) throws SQLException {
-        return new JSONObject()
-                .put("ids", new JSONArray(mediaService.getMediaIds(page, orderBy, asc, includeVideos).stream().map(Object::toString).collect(Collectors.toList())))
+    public String getMedia(@PathVariable int page, @PathVariable String orderBy, @PathVariable boolean asc, @PathVariable boolean includeVideos,
+                           @RequestParam(defaultValue = "false") boolean metadata) throws SQLException {
+        final List<Long> ids = mediaService.getMediaIds(page, orderBy, asc, includeVideos);
+        final JSONObject response = new JSONObject()
+                .put("ids", new JSONArray(ids.stream().map(Object::toString).collect(Collectors.toList())))
                 .put("page", page)
-                .put("total", mediaService.getPageCount(includeVideos))
-                .toString();
+                .put("total", mediaService.getPageCount(includeVideos));
+        if (metadata) {
+            response.put("media", buildMediaMetadata(mediaService.getMedia(ids)));
+        }
+        return response.toString();
     }
 
-    @GetMapping("/media/get/{id}/full")
-    public ResponseEntity<Resource> getMediaFull(@PathVariable long id) throws IOException {
-        final File file = mediaService.getMediaFile(id);
-        if (file == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    @GetMapping("/media/page/cursor/{orderBy}/{asc}/{includeVideos}")
+    public String getMediaAfterCursor(@PathVariable String orderBy, @PathVariable boolean asc, @PathVariable boolean includeVideos, @RequestParam(required = false) String cursor,
+                                      @RequestParam(defaultValue = "false") boolean metadata) throws SQLException {
+        final MediaCursor after;
+        try {
+            after = cursor == null || cursor.isEmpty() ? null : MediaCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
 
-        return buildResponseEntityForFile(file);
+        final MediaCursorPage page = mediaService.getMediaIdsAfter(after, orderBy, asc, includeVideos);
+        final JSONObject response = new JSONObject()
+                .put("ids", new JSONArray(page.getIds().stream().map(Object::toString).collect(Collectors.toList())))
+                .put("next", page.getNext() == null ? JSONObject.NULL : page.getNext().encode());
+        if (metadata) {
+            response.put("media", buildMediaMetadata(mediaService.getMedia(page.getIds())));
+        }
+        return response.toString();
     }
 
-    private String getFileExtension(File file) {
-        String fileName = file.getName();
-        if (fileName.lastIndexOf(".") != -1 && fileName.lastIndexOf(".") != 0)
-            return fileName.substring(fileName.lastIndexOf(".") + 1);
-        else return "";
+    /**
+     * Supports range requests, so that videos can be streamed and seeked in without downloading them completely.
+     */
+    @GetMapping("/media/get/{id}/full")
+    public void getMediaFull(@PathVariable long id, ServletWebRequest request) throws IOException {
+        final HttpServletResponse response = request.getResponse();
+        final MediaRow media = mediaService.getMedia(id);
+        if (media == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        final HttpHeaders headers = buildCacheHeaders(media, buildETag(media), CacheControl.noCache().getHeaderValue());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, headers.getCacheControl());
+        if (request.checkNotModified(headers.getETag(), headers.getLastModified())) {
+            return;
+        }
+
+        final File file = media.getFile();
+        if (!file.isFile()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.inline().filename(file.getName(), StandardCharsets.UTF_8).build().toString());
+        FileRangeWriter.write(file, getContentType(new FileSystemResource(file)), headers.getETag(), headers.getLastModified(), request.getRequest(), response);
     }
 
+    /**
+     * @param version the last edited time of the media as returned with the media listings. If it is given and matches
+     *                the media, the URL identifies the content and the thumbnail is allowed to be cached indefinitely.
+     */
     @GetMapping("/media/get/{id}/thumb/{size}")
-    public ResponseEntity<Resource> getMediaThumb(@PathVariable long id, @PathVariable int size) throws IOException {
-        final File file = mediaService.getMediaFile(id);
-        if (file == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    public ResponseEntity<Resource> getMediaThumb(@PathVariable long id, @PathVariable int size, @RequestParam(name = "v", required = false) Long version, ServletWebRequest request) throws IOException {
+        final MediaRow media = mediaService.getMedia(id);
+        if (media == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        final File file = media.getFile();
+        final long lastEdited = media.getLastEdited().getTime();
+        final int pyramidSize = thumbnailPipeline.getPyramidSize(size);
+
+        // the immutable directive is not supported by the CacheControl builder of this Spring version
+        final String cacheControl = version != null && version == lastEdited
+                ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable"
+                : CacheControl.noCache().getHeaderValue();
+        final HttpHeaders headers = buildCacheHeaders(media, buildETag(media) + "-" + pyramidSize, cacheControl);
+        if (isNotModified(request, headers)) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+
+        final Thumbnail thumbnail = thumbnailPipeline.request(file, media.isVideo(), getThumbnailSourceHash(media), getThumbnailSourceVersion(media), pyramidSize);
+        if (thumbnail == null) {
+            // the media could not be decoded or not in time, let the browser try to display it instead. the original is
+            // neither a thumbnail of the requested size nor final, as the thumbnail may be available later, so it must
+            // not be cached as one
+            final HttpHeaders fallbackHeaders = new HttpHeaders();
+            fallbackHeaders.setCacheControl(CacheControl.noStore().getHeaderValue());
+            return buildResponseEntity(new FileSystemResource(file), fallbackHeaders);
+        }
 
-        File thumbnailFile = ImageUtil.createThumbnail(file, new File(MediaGalleryConfig.getThumbsDir(), size + "-" + MediaService.hash(file.getAbsolutePath()) + "." + getFileExtension(file)), size);
+        return buildResponseEntity(thumbnail, headers);
+    }
+
+    /**
+     * Media with a content fingerprint share their thumbnails with all copies of the same content, so that copies are
+     * only decoded and stored once. The fingerprint changes with the content, so no version is needed in that case.
+     */
+    private static long getThumbnailSourceHash(MediaRow media) {
+        return media.getFingerprint() != null ? media.getFingerprint() : media.getId();
+    }
+
+    private static long getThumbnailSourceVersion(MediaRow media) {
+        return media.getFingerprint() != null ? 0 : media.getLastEdited().getTime();
+    }
+
+    /**
+     * The id and last edited time identify the content of a media file, as the file is indexed again when it changes.
+     */
+    private static String buildETag(MediaRow media) {
+        return media.getId() + "-" + media.getLastEdited().getTime();
+    }
+
+    /**
+     * Evaluates the conditional headers of the request against the validators. Unlike
+     * {@link WebRequest#checkNotModified(String, long)} on the request itself, this does not write the validators to the
+     * response, so responses that must not be revalidated can leave them out.
+     */
+    private static boolean isNotModified(ServletWebRequest request, HttpHeaders headers) {
+        return new ServletWebRequest(request.getRequest()).checkNotModified(headers.getETag(), headers.getLastModified());
+    }
 
-        return buildResponseEntityForFile(thumbnailFile);
+    private static HttpHeaders buildCacheHeaders(MediaRow media, String eTag, String cacheControl) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"" + eTag + "\"");
+        headers.setLastModified(media.getLastEdited().getTime());
+        headers.setCacheControl(cacheControl);
+        return headers;
     }
 
     @GetMapping("/media/get/{id}/type")
     public String getMediaType(@PathVariable long id) {
-        final File file = mediaService.getMediaFile(id);
+        final MediaRow media = mediaService.getMedia(id);
         return new JSONObject()
-                .put("type", file == null ? "unknown" : (file.getName().endsWith(".mp4") || file.getName().endsWith(".mov")) ? "vid" : "img")
+                .put("type", media == null ? "unknown" : getMediaTypeName(media))
                 .toString();
     }
 
     @GetMapping("/media/get/{id}/metadata")
     public String getMediaMetadata(@PathVariable long id) {
         final MediaRow media = mediaService.getMedia(id);
-        final File file = media.getFile();
+        final File file = media == null ? null : media.getFile();
         return new JSONObject()
-                .put("type", file == null ? "unknown" : ((file.getName().endsWith(".mp4") || file.getName().endsWith(".mov")) ? "vid" : "img") + "/" + getFileExtension(file))
+                .put("type", file == null ? "unknown" : getMediaTypeName(media) + "/" + media.getExtension())
                 .put("filename", file == null ? "unknown" : file.getName())
                 .put("path", file == null ? "unknown" : file.getAbsolutePath())
-                .put("size", file == null ? "unknown" : FileWalkerUtils.formatFileSize(file.length()))
+                .put("size", file == null || media.getSizeBytes() == null ? "unknown" : FileWalkerUtils.formatFileSize(media.getSizeBytes()))
+                .put("dimensions", file == null || media.getWidth() == null ? "unknown" : media.getWidth() + " x " + media.getHeight())
                 .put("lastModified", file == null ? "unknown" : media.getLastEditedAsYYYY_MM_DD())
                 .toString();
     }
 
+    private static String getMediaTypeName(MediaRow media) {
+        return media.isVideo() ? "vid" : "img";
+    }
+
+    /**
+     * Returns the metadata of several media with a single database query, as an alternative to requesting
+     * {@code /media/get/{id}/type} for every media. Ids that do not exist are not contained in the response.
+     *
+     * @param ids the comma separated ids of the media, at most {@link #MAX_METADATA_IDS}.
+     */
+    @GetMapping("/media/get/metadata")
+    public String getMediaMetadata(@RequestParam List<Long> ids) throws SQLException {
+        if (ids.size() > MAX_METADATA_IDS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + MAX_METADATA_IDS + " ids can be requested at once");
+        }
+        return new JSONObject()
+                .put("media", buildMediaMetadata(mediaService.getMedia(ids)))
+                .toString();
+    }
+
+    private static JSONArray buildMediaMetadata(List<MediaRow> mediaRows) {
+        final JSONArray media = new JSONArray();
+        for (MediaRow mediaRow : mediaRows) {
+            media.put(new JSONObject()
+                    .put("id", String.valueOf(mediaRow.getId()))
+                    .put("type", getMediaTypeName(mediaRow))
+                    .put("extension", mediaRow.getExtension())
+                    .put("size", mediaRow.getSizeBytes() == null ? JSONObject.NULL : mediaRow.getSizeBytes())
+                    .put("width", mediaRow.getWidth() == null ? JSONObject.NULL : mediaRow.getWidth())
+                    .put("height", mediaRow.getHeight() == null ? JSONObject.NULL : mediaRow.getHeight())
+                    .put("date", mediaRow.getLastEditedAsYYYY_MM_DD())
+                    .put("file", mediaRow.getFileForSummary())
+                    .put("version", mediaRow.getLastEdited().getTime())
+            );
+        }
+        return media;
+    }
+
+    /**
+     * Lists groups of media that have the same content, as found by their content fingerprints.
+     */
+    @GetMapping("/media/duplicates")
+    public String getMediaDuplicates() throws SQLException {
+        final JSONArray groups = new JSONArray();
+        for (List<MediaRow> group : mediaService.getDuplicates()) {
+            groups.put(new JSONObject()
+                    .put("fingerprint", Long.toHexString(group.get(0).getFingerprint()))
+                    .put("size", group.get(0).getSizeBytes())
+                    .put("media", buildMediaMetadata(group))
+                    .put("paths", new JSONArray(group.stream().map(MediaRow::getFileAsString).collect(Collectors.toList())))
+            );
+        }
+        return new JSONObject()
+                .put("groups", groups)
+                .toString();
+    }
+
     @GetMapping("/system/show-in-folder/{id}")
     public String getShowInEnclosingFolder(@PathVariable long id) {
         final File file = mediaService.getMediaFile(id);
@@ -139,6 +357,22 @@ public class MainController {
         return new JSONObject().put("success", true).toString();
     }
 
+    @GetMapping("/system/stats")
+    public String getSystemStats() {
+        final JSONObject stats = new JSONObject();
+        final DatabaseConnectionProvider connectionProvider = DatabaseHandler.getConnectionProvider();
+        if (connectionProvider instanceof PooledDatabaseConnectionProvider) {
+            stats.put("databasePool", ((PooledDatabaseConnectionProvider) connectionProvider).toJson());
+        }
+        stats.put("thumbnails", thumbnailCache.toJson());
+        stats.put("thumbnailPipeline", thumbnailPipeline.toJson());
+        stats.put("indexing", mediaService.getIndexingProgress());
+        if (mediaService.getDirectoryWatcher() != null) {
+            stats.put("watcher", mediaService.getDirectoryWatcher().toJson());
+        }
+        return stats.toString();
+    }
+
     @GetMapping("/settings/get")
     public String getMediaThumb() {
         return new JSONObject()
@@ -148,7 +382,9 @@ public class MainController {
 
     @GetMapping("/system/shutdown/{type}")
     public String getSystemExitAndShutdown(@PathVariable int type) throws IOException {
-        if (type == 2) {
+        if (type == 1) {
+            thumbnailCache.clear();
+        } else if (type == 2) {
             FileUtils.deleteDirectory(MediaGalleryConfig.getBaseSaveDirectory());
         }
         AppEntryPoint.stop();
@@ -166,8 +402,8 @@ public class MainController {
 
         final File file = new File(path);
 
-        mediaService.rescanMedia(file);
-        return new JSONObject().put("success", true).toString();
+        final MediaIndexingResult result = mediaService.rescanMedia(file);
+        return new JSONObject().put("success", true).put("result", result.toJson()).toString();
     }
 
     @PostMapping("/settings/path/remove")
@@ -226,6 +462,12 @@ public class MainController {
         return new JSONObject().put("success", true).toString();
     }
 
+    @PostMapping("/settings/index/cancel")
+    public String postSettingsIndexCancel() {
+        mediaService.cancelIndexing();
+        return new JSONObject().put("success", true).toString();
+    }
+
     @PostMapping("/settings/reindex-on-startup")
     public String postSettingsReindexOnStartup(@RequestBody String requestBody) {
         final JSONObject request = new JSONObject(requestBody);
@@ -234,11 +476,18 @@ public class MainController {
         return new JSONObject().put("success", true).toString();
     }
 
-    private ResponseEntity<Resource> buildResponseEntityForFile(File file) throws IOException {
-        HttpHeaders headers = new HttpHeaders();
-        headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getName());
-        headers.add(HttpHeaders.CONTENT_TYPE, Files.probeContentType(file.toPath()));
-        Resource resource = new FileSystemResource(file);
+    private ResponseEntity<Resource> buildResponseEntity(Resource resource, HttpHeaders headers) throws IOException {
+        headers.add(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.inline().filename(resource.getFilename(), StandardCharsets.UTF_8).build().toString());
+        headers.add(HttpHeaders.CONTENT_TYPE, getContentType(resource));
         return new ResponseEntity<>(resource, headers, HttpStatus.OK);
     }
+
+    private static String getContentType(Resource resource) throws IOException {
+        final Optional<MediaType> mediaType = MediaTypeFactory.getMediaType(resource);
+        if (mediaType.isPresent()) {
+            return mediaType.get().toString();
+        }
+        final String probed = resource.isFile() ? Files.probeContentType(resource.getFile().toPath()) : null;
+        return probed != null ? probed : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+    }
 }
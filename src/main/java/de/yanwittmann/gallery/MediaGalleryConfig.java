@@ -5,7 +5,9 @@ import org.springframework.core.io.ClassPathResource;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class MediaGalleryConfig {
 
@@ -44,4 +46,83 @@ public class MediaGalleryConfig {
         return new File(properties.getProperty("gallery.file.thumb"));
     }
 
+    public static long getThumbnailCacheMaxBytes() {
+        return Long.parseLong(properties.getProperty("gallery.thumb.cache.max-bytes", "1073741824"));
+    }
+
+    /**
+     * @return the thumbnail sizes that are generated together from a single decode of the source, in ascending order.
+     */
+    public static int[] getThumbnailPyramidSizes() {
+        final int[] sizes = Arrays.stream(properties.getProperty("gallery.thumb.pyramid-sizes", "128,256,512,1024").split(","))
+                .map(String::trim)
+                .filter(size -> !size.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .distinct()
+                .toArray();
+        if (sizes.length == 0) {
+            throw new IllegalStateException("At least one thumbnail size must be configured in gallery.thumb.pyramid-sizes");
+        }
+        return sizes;
+    }
+
+    /**
+     * @return whether thumbnails of newly indexed media are generated in the background.
+     */
+    public static boolean isThumbnailPregenerationEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("gallery.thumb.pregenerate", "true"));
+    }
+
+    /**
+     * @return the thumbnail format, either {@code auto} (JPEG for opaque images, PNG for images with transparency),
+     * {@code jpeg} or {@code png}.
+     */
+    public static String getThumbnailFormat() {
+        return properties.getProperty("gallery.thumb.format", "auto").trim().toLowerCase();
+    }
+
+    /**
+     * @return the JPEG compression quality of thumbnails, between 0 and 1.
+     */
+    public static float getThumbnailJpegQuality() {
+        return Float.parseFloat(properties.getProperty("gallery.thumb.jpeg-quality", "0.85"));
+    }
+
+    /**
+     * @return how long the media directory watcher waits for further events before applying the changes.
+     */
+    public static long getWatchDebounceMillis() {
+        return Long.parseLong(properties.getProperty("gallery.watch.debounce-ms", "1000"));
+    }
+
+    /**
+     * @return how long the media directory watcher collects changes at most while events keep arriving.
+     */
+    public static long getWatchMaxDelayMillis() {
+        return Long.parseLong(properties.getProperty("gallery.watch.max-delay-ms", "10000"));
+    }
+
+    /**
+     * @return the interval of the scans of media directories whose watches have missed events.
+     */
+    public static long getWatchFallbackScanMillis() {
+        return TimeUnit.MINUTES.toMillis(Long.parseLong(properties.getProperty("gallery.watch.fallback-scan-minutes", "15")));
+    }
+
+    /**
+     * @return the maximum amount of pooled database connections, or 0 if the pool is sized automatically.
+     */
+    public static int getDatabasePoolSize() {
+        final String size = properties.getProperty("gallery.db.pool.size", "auto").trim();
+        if (size.isEmpty() || size.equalsIgnoreCase("auto")) {
+            return 0;
+        }
+        return Integer.parseInt(size);
+    }
+
+    public static long getDatabasePoolMaxWaitMillis() {
+        return Long.parseLong(properties.getProperty("gallery.db.pool.max-wait-ms", "30000"));
+    }
+
 }
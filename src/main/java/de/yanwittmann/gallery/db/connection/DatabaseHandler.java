@@ -1,6 +1,7 @@
 package de.yanwittmann.gallery.db.connection;
 
 import de.yanwittmann.gallery.MediaGalleryConfig;
+import de.yanwittmann.gallery.util.ParallelFileWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,18 +9,39 @@ public abstract class DatabaseHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(DatabaseHandler.class);
 
+    /**
+     * The database connections an indexing run can hold at the same time: one per walker thread for id lookups and one
+     * for each of the writers of new and changed media.
+     */
+    private static final int INDEXING_CONNECTIONS = ParallelFileWalker.DEFAULT_PARALLELISM + 2;
+
     private static DatabaseConnectionProvider connectionProvider = findDatabaseConnectionProvider();
 
     private static DatabaseConnectionProvider findDatabaseConnectionProvider() {
         try {
-            LOG.info("Using sqlite database connection provider");
-            return new SqlLiteDatabaseConnectionProvider(MediaGalleryConfig.getDatabaseDirectory());
+            final int poolSize = getPoolSize();
+            LOG.info("Using pooled sqlite database connection provider with {} connections", poolSize);
+            return new PooledDatabaseConnectionProvider(
+                    new SqlLiteDatabaseConnectionProvider(MediaGalleryConfig.getDatabaseDirectory()),
+                    poolSize,
+                    MediaGalleryConfig.getDatabasePoolMaxWaitMillis()
+            );
         } catch (Exception e) {
             LOG.error("Error finding database connection provider", e);
             return null;
         }
     }
 
+    /**
+     * @return the configured pool size or, by default, enough connections for a rescan and a concurrent batch of the
+     * media directory watcher to hold all connections they use at once, with some left for requests and open result
+     * streams.
+     */
+    private static int getPoolSize() {
+        final int configured = MediaGalleryConfig.getDatabasePoolSize();
+        return configured > 0 ? configured : 2 * INDEXING_CONNECTIONS + 4;
+    }
+
     public static void setConnectionProvider(DatabaseConnectionProvider connectionProvider) {
         if (connectionProvider == null) {
             throw new IllegalArgumentException("Connection provider must not be null");
@@ -32,4 +54,14 @@ public abstract class DatabaseHandler {
     public static DatabaseConnectionProvider getConnectionProvider() {
         return connectionProvider;
     }
+
+    public static void closeConnectionProvider() {
+        if (connectionProvider instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) connectionProvider).close();
+            } catch (Exception e) {
+                LOG.error("Error closing database connection provider", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,264 @@
+package de.yanwittmann.gallery.db.connection;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded amount of long-lived connections of another connection provider open and hands them out again
+ * instead of opening a new connection for every call.
+ * <p>
+ * The connections returned by {@link #connection()} are proxies: closing them returns the underlying connection to the
+ * pool. Statements that were created on a pooled connection and not closed by the caller are closed when the
+ * connection is returned, and open transactions are rolled back.
+ */
+public class PooledDatabaseConnectionProvider implements DatabaseConnectionProvider, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledDatabaseConnectionProvider.class);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final DatabaseConnectionProvider delegate;
+    private final int maxSize;
+    private final long maxWaitMillis;
+
+    private final BlockingDeque<Connection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param delegate      the provider that opens the underlying connections.
+     * @param maxSize       the maximum amount of connections that are open at the same time.
+     * @param maxWaitMillis how long to wait for a free connection before failing.
+     */
+    public PooledDatabaseConnectionProvider(DatabaseConnectionProvider delegate, int maxSize, long maxWaitMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, got " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    @Override
+    public Connection connection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        final long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timed out after " + maxWaitMillis + "ms waiting for a database connection (" + activeCount.get() + " of " + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted whilst waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            final Connection connection = takeValidConnection();
+            activeCount.incrementAndGet();
+            return wrap(connection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    private Connection takeValidConnection() throws SQLException {
+        Connection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            if (isValid(connection)) {
+                return connection;
+            }
+            LOG.warn("Discarding invalid pooled database connection");
+            discard(connection);
+        }
+
+        connection = delegate.connection();
+        openCount.incrementAndGet();
+        return connection;
+    }
+
+    private boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection connection) {
+        discardedCount.incrementAndGet();
+        closeConnection(connection);
+    }
+
+    private void closeConnection(Connection connection) {
+        openCount.decrementAndGet();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Failed to close database connection: {}", e.getMessage());
+        }
+    }
+
+    private void release(Connection connection, List<Statement> statements) {
+        try {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    LOG.warn("Failed to close statement of pooled connection: {}", e.getMessage());
+                }
+            }
+
+            if (closed) {
+                closeConnection(connection);
+                return;
+            }
+
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                idleConnections.offerFirst(connection);
+            } catch (SQLException e) {
+                LOG.warn("Failed to reset pooled database connection, discarding it: {}", e.getMessage());
+                discard(connection);
+            }
+        } finally {
+            activeCount.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    private Connection wrap(Connection connection) {
+        final List<Statement> statements = new ArrayList<>();
+        final boolean[] released = {false};
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            final String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!released[0]) {
+                        released[0] = true;
+                        release(connection, statements);
+                    }
+                    return null;
+                case "isClosed":
+                    return released[0] || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + connection;
+            }
+
+            if (released[0]) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            final Object result = invoke(connection, method, args);
+            if (result instanceof Statement) {
+                statements.add((Statement) result);
+            }
+            return result;
+        });
+    }
+
+    private static Object invoke(Connection connection, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    public double getAverageWaitMillis() {
+        final long acquired = acquireCount.get();
+        return acquired == 0 ? 0 : totalWaitNanos.get() / (double) acquired / 1_000_000;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("maxSize", getMaxSize())
+                .put("open", openCount.get())
+                .put("active", getActiveCount())
+                .put("idle", getIdleCount())
+                .put("waiting", getWaitingCount())
+                .put("acquired", getAcquireCount())
+                .put("averageWaitMillis", getAverageWaitMillis())
+                .put("maxWaitMillis", getMaxWaitMillis())
+                .put("timeouts", timeoutCount.get())
+                .put("discarded", discardedCount.get());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            closeConnection(connection);
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package de.yanwittmann.gallery.db.connection;
 
+import org.sqlite.SQLiteConfig;
+
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Properties;
 
 public class SqlLiteDatabaseConnectionProvider implements DatabaseConnectionProvider {
 
+    private static final int BUSY_TIMEOUT_MILLIS = 10000;
+
     private final String databaseUri;
+    private final Properties connectionProperties;
 
     public SqlLiteDatabaseConnectionProvider(File databaseFile) {
         if (!databaseFile.getParentFile().exists()) {
@@ -15,10 +21,18 @@ public class SqlLiteDatabaseConnectionProvider implements DatabaseConnectionProv
         }
 
         this.databaseUri = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+
+        // write-ahead logging lets readers continue while the indexer writes,
+        // and with it a NORMAL sync level is still safe against corruption
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        this.connectionProperties = config.toProperties();
     }
 
     @Override
     public Connection connection() throws SQLException {
-        return DriverManager.getConnection(this.databaseUri);
+        return DriverManager.getConnection(this.databaseUri, this.connectionProperties);
     }
 }
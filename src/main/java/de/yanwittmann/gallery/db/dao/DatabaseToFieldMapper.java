@@ -21,6 +21,29 @@ public enum DatabaseToFieldMapper {
             return null;
         }
     }),
+    /**
+     * SQLite returns integer values as {@link Integer} or {@link Long} depending on their magnitude.
+     */
+    LONG(o -> {
+        if (o == null) {
+            return null;
+        } else if (o instanceof Number) {
+            return ((Number) o).longValue();
+        } else {
+            MainController.LOG.warn("Failed to map database type to field type: {}", o.getClass());
+            return null;
+        }
+    }),
+    INTEGER(o -> {
+        if (o == null) {
+            return null;
+        } else if (o instanceof Number) {
+            return ((Number) o).intValue();
+        } else {
+            MainController.LOG.warn("Failed to map database type to field type: {}", o.getClass());
+            return null;
+        }
+    }),
     TIMESTAMP(o -> {
         if (o instanceof java.sql.Timestamp) {
             return o;
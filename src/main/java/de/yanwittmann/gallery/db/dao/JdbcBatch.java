@@ -0,0 +1,171 @@
+package de.yanwittmann.gallery.db.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Collects insert statements on a single connection and commits them in batches of a fixed size.
+ * If a batch fails, it is rolled back and its rows are inserted one by one, so that a single broken row does not drop
+ * the whole batch.
+ * <p>
+ * In upsert mode, rows whose primary key already exists update the existing row instead of failing. Every row that
+ * has been written is passed to the listener once its transaction has been committed.
+ *
+ * @param <ROW> Type of the row instances.
+ */
+class JdbcBatch<ROW extends JdbcRow> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcBatch.class);
+
+    private final Connection connection;
+    private final int commitEvery;
+    private final boolean upsert;
+    private final Consumer<ROW> written;
+
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+    private final List<ROW> pending = new ArrayList<>();
+
+    private long firstPendingMillis = 0;
+    private int inserted = 0;
+    private int failed = 0;
+
+    JdbcBatch(Connection connection, int commitEvery) throws SQLException {
+        this(connection, commitEvery, false);
+    }
+
+    JdbcBatch(Connection connection, int commitEvery, boolean upsert) throws SQLException {
+        this(connection, commitEvery, upsert, row -> {
+        });
+    }
+
+    JdbcBatch(Connection connection, int commitEvery, boolean upsert, Consumer<ROW> written) throws SQLException {
+        if (commitEvery < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + commitEvery);
+        }
+        this.connection = connection;
+        this.commitEvery = commitEvery;
+        this.upsert = upsert;
+        this.written = written;
+        this.connection.setAutoCommit(false);
+    }
+
+    private String sql(ROW row) {
+        return upsert ? row.upsertBatchSql() : row.insertBatchSql();
+    }
+
+    void add(ROW row) throws SQLException {
+        final PreparedStatement statement = statement(sql(row));
+        row.bindInsertValues(statement);
+        statement.addBatch();
+        if (pending.isEmpty()) {
+            firstPendingMillis = System.currentTimeMillis();
+        }
+        pending.add(row);
+
+        if (pending.size() >= commitEvery) {
+            flush();
+        }
+    }
+
+    void flush() throws SQLException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (PreparedStatement statement : statements.values()) {
+                statement.executeBatch();
+            }
+            connection.commit();
+            inserted += pending.size();
+            notifyWritten(pending);
+        } catch (SQLException e) {
+            connection.rollback();
+            for (PreparedStatement statement : statements.values()) {
+                statement.clearBatch();
+            }
+
+            LOG.warn("Batch insert of {} rows failed, inserting rows individually: {}", pending.size(), e.getMessage());
+            final List<ROW> writtenRows = new ArrayList<>();
+            for (ROW row : pending) {
+                final PreparedStatement statement = statement(sql(row));
+                try {
+                    row.bindInsertValues(statement);
+                    statement.executeUpdate();
+                    writtenRows.add(row);
+                } catch (SQLException rowException) {
+                    failed++;
+                    LOG.error("Failed to insert row into table [{}]: {}", row.getTableName(), rowException.getMessage());
+                }
+            }
+            connection.commit();
+            inserted += writtenRows.size();
+            notifyWritten(writtenRows);
+        }
+
+        pending.clear();
+    }
+
+    private void notifyWritten(List<ROW> rows) {
+        for (ROW row : rows) {
+            try {
+                written.accept(row);
+            } catch (RuntimeException e) {
+                LOG.warn("Listener for written rows of table [{}] failed", row.getTableName(), e);
+            }
+        }
+    }
+
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * @return whether rows have been added that are not committed yet.
+     */
+    boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * @return how long the oldest uncommitted row has been waiting, or 0 if there are no uncommitted rows.
+     */
+    long getPendingMillis() {
+        return pending.isEmpty() ? 0 : System.currentTimeMillis() - firstPendingMillis;
+    }
+
+    int getInserted() {
+        return inserted;
+    }
+
+    int getFailed() {
+        return failed;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            connection.setAutoCommit(true);
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.yanwittmann.gallery.db.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Streaming sink for inserting rows into a table from multiple producer threads.
+ * Rows are handed over through a bounded queue to a single writer thread, which inserts them over one connection in
+ * transactional batches. Producers block when the queue is full, so a fast producer cannot outrun the database.
+ * <p>
+ * In upsert mode, rows whose primary key already exists update the existing row instead of failing. Rows are passed
+ * to the listener on the writer thread once they have been committed, rows that could not be written are not. Rows are
+ * committed at the latest {@value #MAX_PENDING_MILLIS} ms after they have been added, even if the batch is not full.
+ *
+ * @param <ROW> Type of the row instances.
+ */
+public class JdbcBatchInserter<ROW extends JdbcRow> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcBatchInserter.class);
+
+    private static final Object END_OF_STREAM = new Object();
+    private static final long MAX_PENDING_MILLIS = 1000;
+
+    private final JdbcTable<ROW, ?> table;
+    private final int batchSize;
+    private final boolean upsert;
+    private final Consumer<ROW> written;
+    private final BlockingQueue<Object> queue;
+    private final Thread writerThread;
+
+    private volatile Exception failure;
+    private volatile int inserted = 0;
+    private volatile int failed = 0;
+    private boolean closed = false;
+
+    JdbcBatchInserter(JdbcTable<ROW, ?> table, int queueCapacity, int batchSize, boolean upsert, Consumer<ROW> written) {
+        this.table = table;
+        this.batchSize = batchSize;
+        this.upsert = upsert;
+        this.written = written;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.writerThread = new Thread(this::writeRows, "batch-inserter-" + table.getTableName());
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Adds a row to the insert queue, blocking while the queue is full.
+     *
+     * @param row the row to insert.
+     * @throws IllegalStateException if the inserter is closed or the writer thread failed.
+     */
+    public void add(ROW row) {
+        if (closed) {
+            throw new IllegalStateException("Batch inserter for table [" + table.getTableName() + "] is already closed");
+        }
+
+        try {
+            while (!queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+            checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst queueing row for table [" + table.getTableName() + "]", e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Batch inserter for table [" + table.getTableName() + "] failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeRows() {
+        try (final JdbcBatch<ROW> batch = new JdbcBatch<>(table.openConnection(), batchSize, upsert, written)) {
+            final List<Object> drained = new ArrayList<>(batchSize);
+
+            while (true) {
+                // while rows are waiting for their commit, the queue is only polled until they are due
+                final Object next = batch.hasPending()
+                        ? queue.poll(Math.max(0, MAX_PENDING_MILLIS - batch.getPendingMillis()), TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (next != null) {
+                    drained.add(next);
+                    queue.drainTo(drained, batchSize - 1);
+                }
+
+                boolean endOfStream = false;
+                for (Object element : drained) {
+                    if (element == END_OF_STREAM) {
+                        endOfStream = true;
+                    } else {
+                        batch.add((ROW) element);
+                    }
+                }
+                drained.clear();
+
+                // rows are only written once the batch is flushed, so slow producers would otherwise delay the commit
+                // of their rows and the listener until the batch is full
+                if (endOfStream || batch.getPendingMillis() >= MAX_PENDING_MILLIS) {
+                    batch.flush();
+                }
+                inserted = batch.getInserted();
+                failed = batch.getFailed();
+
+                if (endOfStream) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Batch inserter for table [{}] failed", table.getTableName(), e);
+            failure = e;
+            queue.clear();
+        }
+    }
+
+    /**
+     * @return the amount of rows that have been committed, which includes the updated rows in upsert mode.
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Flushes all queued rows and waits for the writer thread to commit them.
+     *
+     * @throws SQLException if the writer thread failed.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            while (failure == null && !queue.offer(END_OF_STREAM, 100, TimeUnit.MILLISECONDS)) {
+                // the writer is still draining the queue
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted whilst waiting for batch inserter of table [" + table.getTableName() + "]", e);
+        }
+
+        if (failure != null) {
+            throw new SQLException("Batch insert into table [" + table.getTableName() + "] failed: " + failure.getMessage(), failure);
+        }
+    }
+}
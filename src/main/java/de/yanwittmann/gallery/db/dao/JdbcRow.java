@@ -3,7 +3,6 @@ package de.yanwittmann.gallery.db.dao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Field;
 import java.sql.*;
 import java.util.*;
 
@@ -16,26 +15,17 @@ public abstract class JdbcRow {
     public JdbcRow() {
     }
 
+    /**
+     * Reads the row from the current row of the result set. The columns are looked up in the result set for every row,
+     * {@link JdbcTable#createFromResultSet(ResultSet)} looks them up once for all rows instead.
+     */
     public JdbcRow(ResultSet resultSet) {
         if (resultSet != null) {
-            final Map<Field, Column> columns = getFieldsWithColumnAnnotations();
-
-            for (Map.Entry<Field, Column> entry : columns.entrySet()) {
-                final Field field = entry.getKey();
-                final Column column = entry.getValue();
-                field.setAccessible(true);
-
-                try {
-                    if (!hasColumn(resultSet, column.name())) {
-                        continue;
-                    }
-                    final Object result = resultSet.getObject(column.name());
-                    final Object mapped = column.resultSetToField().getMapper().apply(result);
-
-                    field.set(this, mapped);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            try {
+                final RowMapping mapping = getRowMapping();
+                mapping.resolve(resultSet).read(this, resultSet);
+            } catch (SQLException e) {
+                LOG.error("Could not read row of class [{}] from result set", getClass().getSimpleName(), e);
             }
         }
     }
@@ -51,6 +41,10 @@ public abstract class JdbcRow {
         return false;
     }
 
+    RowMapping getRowMapping() {
+        return RowMapping.of(getClass());
+    }
+
     public abstract String getTableName();
 
     public void fieldChanged(String fieldName) {
@@ -60,23 +54,21 @@ public abstract class JdbcRow {
 
     public boolean changeField(String fieldName, Object value) {
         try {
-            final Field field = getFieldWithColumnName(fieldName);
-            if (field == null) {
+            final RowMapping.ColumnMapping column = getRowMapping().getColumn(fieldName);
+            if (column == null) {
                 throw new IllegalArgumentException("Field [" + fieldName + "] does not exist on class [" + getClass().getSimpleName() + "]");
             }
 
-            final Column column = field.getAnnotation(Column.class);
-            if (column.notNull() && value == null) {
+            if (column.getColumn().notNull() && value == null) {
                 throw new IllegalArgumentException("Column [" + fieldName + "] must not be null on class [" + getClass().getSimpleName() + "]");
             }
 
-            field.setAccessible(true);
-            final Object currentValue = field.get(this);
+            final Object currentValue = column.get(this);
             if (Objects.equals(currentValue, value)) {
                 return false;
             }
 
-            field.set(this, value);
+            column.set(this, value);
             fieldChanged(fieldName);
 
             return true;
@@ -86,37 +78,12 @@ public abstract class JdbcRow {
         }
     }
 
-    private Map<Field, Column> getFieldsWithColumnAnnotations() {
-        final Map<Field, Column> columns = new HashMap<>();
-
-        for (Field field : getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(Column.class)) {
-                columns.put(field, field.getAnnotation(Column.class));
-            }
-        }
-
-        return columns;
-    }
-
-    private Field getFieldWithColumnName(String columnName) {
-        for (Field field : getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(Column.class)) {
-                final Column column = field.getAnnotation(Column.class);
-                if (column.name().equals(columnName)) {
-                    return field;
-                }
-            }
-        }
-        return null;
-    }
-
-    private Field getPrimaryKeyField() {
-        for (Field field : getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(PrimaryKey.class)) {
-                return field;
-            }
+    private RowMapping.ColumnMapping getPrimaryKeyColumn() {
+        final RowMapping.ColumnMapping primaryKey = getRowMapping().getPrimaryKey();
+        if (primaryKey == null) {
+            throw new RuntimeException("No primary key field found for: " + this);
         }
-        return null;
+        return primaryKey;
     }
 
     private String buildPlaceholderString(int length) {
@@ -127,66 +94,61 @@ public abstract class JdbcRow {
         return joiner.toString();
     }
 
-    private String buildVariableString(Collection<Field> fields) {
+    private String buildVariableString(Collection<RowMapping.ColumnMapping> columns) {
         final StringJoiner joiner = new StringJoiner(", ", "(", ")");
-        for (Field field : fields) {
-            joiner.add(field.getAnnotation(Column.class).name());
+        for (RowMapping.ColumnMapping column : columns) {
+            joiner.add(column.getName());
         }
         return joiner.toString();
     }
 
-    private String buildUpdateString(Collection<Field> fields) {
+    private String buildUpdateString(Collection<RowMapping.ColumnMapping> columns) {
         final StringJoiner joiner = new StringJoiner(", ");
-        for (Field field : fields) {
-            joiner.add(field.getAnnotation(Column.class).name() + " = ?");
+        for (RowMapping.ColumnMapping column : columns) {
+            joiner.add(column.getName() + " = ?");
         }
         return joiner.toString();
     }
 
-    private int insertPlaceholderValues(PreparedStatement statement, Map<Field, Column> columns, Set<Field> includeFields) throws IllegalAccessException, SQLException {
+    private int insertPlaceholderValues(PreparedStatement statement, List<RowMapping.ColumnMapping> includeColumns) throws SQLException {
         int i = 1;
-        for (Field field : includeFields) {
-            final Object value = field.get(this);
-            final Column column = columns.get(field);
-
-            final Object mappedValue = column.fieldToResultSet().getMapper().apply(value);
-            statement.setObject(i, mappedValue);
-            // LOG.info("Setting value [{}] to field [{}] with type [{}]", mappedValue, field.getName(), field.getType());
+        for (RowMapping.ColumnMapping column : includeColumns) {
+            statement.setObject(i, column.getForDatabase(this));
             i++;
         }
         return i;
     }
 
-    public PreparedStatement insertStatement(Connection connection) {
-        // LOG.info("Building insert statement for: {}", this);
+    private List<RowMapping.ColumnMapping> getInsertColumns() {
+        final List<RowMapping.ColumnMapping> includeColumns = new ArrayList<>();
 
-        try {
-            final Map<Field, Column> columns = getFieldsWithColumnAnnotations();
+        for (RowMapping.ColumnMapping column : getRowMapping().getColumns()) {
+            if (!column.getColumn().includeInInsert()) {
+                continue;
+            }
+            if (column.getColumn().notNull()) {
+                if (column.get(this) == null) {
+                    continue;
+                }
+            }
 
-            final Set<Field> includeFields = new LinkedHashSet<>();
+            includeColumns.add(column);
+        }
 
-            for (Map.Entry<Field, Column> entry : columns.entrySet()) {
-                final Field field = entry.getKey();
-                final Column column = entry.getValue();
-                field.setAccessible(true);
+        return includeColumns;
+    }
 
-                if (!column.includeInInsert()) {
-                    continue;
-                }
-                if (column.notNull()) {
-                    if (field.get(this) == null) {
-                        continue;
-                    }
-                }
+    public PreparedStatement insertStatement(Connection connection) {
+        // LOG.info("Building insert statement for: {}", this);
 
-                includeFields.add(field);
-            }
+        try {
+            final List<RowMapping.ColumnMapping> includeColumns = getInsertColumns();
 
             final String sql = String.format("INSERT INTO %s %s VALUES %s RETURNING *",
-                    getTableName(), buildVariableString(includeFields), buildPlaceholderString(includeFields.size()));
+                    getTableName(), buildVariableString(includeColumns), buildPlaceholderString(includeColumns.size()));
             final PreparedStatement statement = connection.prepareStatement(sql);
 
-            insertPlaceholderValues(statement, columns, includeFields);
+            insertPlaceholderValues(statement, includeColumns);
 
             return statement;
         } catch (Exception e) {
@@ -194,6 +156,50 @@ public abstract class JdbcRow {
         }
     }
 
+    /**
+     * Builds the insert statement for this row without returning the inserted row.
+     * Rows that produce the same SQL string can share a single prepared statement for batching.
+     *
+     * @return the SQL insert statement with placeholders for the values of this row.
+     */
+    public String insertBatchSql() {
+        final List<RowMapping.ColumnMapping> includeColumns = getInsertColumns();
+
+        return String.format("INSERT INTO %s %s VALUES %s",
+                getTableName(), buildVariableString(includeColumns), buildPlaceholderString(includeColumns.size()));
+    }
+
+    /**
+     * Builds the insert statement for this row that updates the existing row with the same primary key instead of
+     * failing. The values are bound like those of {@link #insertBatchSql()}.
+     *
+     * @return the SQL upsert statement with placeholders for the values of this row.
+     */
+    public String upsertBatchSql() {
+        final List<RowMapping.ColumnMapping> includeColumns = getInsertColumns();
+        final String primaryKeyName = getPrimaryKeyColumn().getName();
+
+        final StringJoiner updates = new StringJoiner(", ");
+        for (RowMapping.ColumnMapping column : includeColumns) {
+            if (!column.getName().equals(primaryKeyName)) {
+                updates.add(column.getName() + " = excluded." + column.getName());
+            }
+        }
+
+        return String.format("INSERT INTO %s %s VALUES %s ON CONFLICT (%s) DO %s",
+                getTableName(), buildVariableString(includeColumns), buildPlaceholderString(includeColumns.size()),
+                primaryKeyName, updates.length() == 0 ? "NOTHING" : "UPDATE SET " + updates);
+    }
+
+    /**
+     * Sets the values of this row as the parameters of a statement that was prepared from {@link #insertBatchSql()}.
+     *
+     * @param statement the prepared statement to bind the values to.
+     */
+    public void bindInsertValues(PreparedStatement statement) throws SQLException {
+        insertPlaceholderValues(statement, getInsertColumns());
+    }
+
     public PreparedStatement updateStatement(Connection connection) {
         if (changedFields.isEmpty()) {
             LOG.info("No fields changed, not building update statement on: {}", this);
@@ -203,42 +209,27 @@ public abstract class JdbcRow {
         // LOG.info("Building update statement on {} for: {}", changedFields, this);
 
         try {
-            final Map<Field, Column> columns = getFieldsWithColumnAnnotations();
-
-            final Set<Field> includeFields = new LinkedHashSet<>();
+            final List<RowMapping.ColumnMapping> includeColumns = new ArrayList<>();
 
-            for (Map.Entry<Field, Column> entry : columns.entrySet()) {
-                final Field field = entry.getKey();
-                final Column column = entry.getValue();
-                field.setAccessible(true);
-
-                if (column.notNull()) {
-                    if (field.get(this) == null) {
+            for (RowMapping.ColumnMapping column : getRowMapping().getColumns()) {
+                if (column.getColumn().notNull()) {
+                    if (column.get(this) == null) {
                         continue;
                     }
                 }
 
-                if (changedFields.contains(field.getName())) {
-                    includeFields.add(field);
+                if (changedFields.contains(column.getName())) {
+                    includeColumns.add(column);
                 }
             }
 
-            final String sql = String.format("UPDATE %s SET %s WHERE %s = ?", getTableName(), buildUpdateString(includeFields), getPrimaryKeyColumnName());
-            final PreparedStatement statement = connection.prepareStatement(sql);
-
-            final int afterPlaceholderIndex = insertPlaceholderValues(statement, columns, includeFields);
-
-            final Field primaryKeyField = getPrimaryKeyField();
-            if (primaryKeyField == null) {
-                throw new RuntimeException("No primary key field found for: " + this);
-            }
+            final RowMapping.ColumnMapping primaryKey = getPrimaryKeyColumn();
 
-            final Column primaryKeyColumn = primaryKeyField.getAnnotation(Column.class);
-            primaryKeyField.setAccessible(true);
+            final String sql = String.format("UPDATE %s SET %s WHERE %s = ?", getTableName(), buildUpdateString(includeColumns), primaryKey.getName());
+            final PreparedStatement statement = connection.prepareStatement(sql);
 
-            final Object primaryKeyValue = primaryKeyField.get(this);
-            final Object mappedPrimaryKeyValue = primaryKeyColumn.fieldToResultSet().getMapper().apply(primaryKeyValue);
-            statement.setObject(afterPlaceholderIndex, mappedPrimaryKeyValue);
+            final int afterPlaceholderIndex = insertPlaceholderValues(statement, includeColumns);
+            statement.setObject(afterPlaceholderIndex, primaryKey.getForDatabase(this));
 
             return statement;
         } catch (Exception e) {
@@ -250,28 +241,15 @@ public abstract class JdbcRow {
         // LOG.info("Building delete statement for: {}", this);
 
         try {
-            final String sql = String.format("DELETE FROM %s WHERE %s = ?", getTableName(), getPrimaryKeyColumnName());
-            final PreparedStatement statement = connection.prepareStatement(sql);
-
-            final Field primaryKeyField = getPrimaryKeyField();
-            if (primaryKeyField == null) {
-                throw new RuntimeException("No primary key field found for: " + this);
-            }
-
-            final Column primaryKeyColumn = primaryKeyField.getAnnotation(Column.class);
-            primaryKeyField.setAccessible(true);
+            final RowMapping.ColumnMapping primaryKey = getPrimaryKeyColumn();
 
-            final Object primaryKeyValue = primaryKeyField.get(this);
-            final Object mappedPrimaryKeyValue = primaryKeyColumn.fieldToResultSet().getMapper().apply(primaryKeyValue);
-            statement.setObject(1, mappedPrimaryKeyValue);
+            final String sql = String.format("DELETE FROM %s WHERE %s = ?", getTableName(), primaryKey.getName());
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setObject(1, primaryKey.getForDatabase(this));
 
             return statement;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
-
-    private String getPrimaryKeyColumnName() {
-        return getPrimaryKeyField().getAnnotation(Column.class).name();
-    }
 }
@@ -1,20 +1,29 @@
 package de.yanwittmann.gallery.db.dao;
 
 import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.migration.SchemaMigration;
+import de.yanwittmann.gallery.db.migration.SchemaMigrator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ClassPathResource;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Abstract class for JDBC tables.
@@ -26,17 +35,61 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
 
     private static final Logger LOG = LoggerFactory.getLogger(JdbcTable.class);
 
-    protected abstract ROW createInstance(ResultSet resultSet);
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * The amount of rows that the driver is asked to fetch at once when streaming query results.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Receives the rows of a query one after the other, positioned on the current row.
+     */
+    @FunctionalInterface
+    public interface ResultRowConsumer {
+        void accept(ResultSet resultSet) throws SQLException;
+    }
+
+    private static final Set<String> MIGRATED_TABLES = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return a new empty row, whose columns are then read from a result set.
+     */
+    protected abstract ROW createInstance();
 
     public abstract String getSchemaResourcePath();
 
     public abstract String getTableName();
 
+    /**
+     * The migrations that build the schema of this table, each of which is applied once per database.
+     * By default, this is only the script at {@link #getSchemaResourcePath()} as version 1. Tables that change their
+     * schema add further migrations with higher versions instead of editing existing ones.
+     *
+     * @return all schema migrations of this table.
+     */
+    protected List<SchemaMigration> getSchemaMigrations() {
+        return Collections.singletonList(SchemaMigration.script(1, getSchemaResourcePath()));
+    }
+
+    /**
+     * Applies all pending schema migrations of this table. Should be called once at startup, the table operations only
+     * trigger it themselves if it has not happened yet.
+     */
     public void createSchema() {
-        try (final InputStream is = new ClassPathResource(getSchemaResourcePath()).getInputStream()) {
-            DatabaseHandler.getConnectionProvider().executeScript(is);
-        } catch (IOException e) {
-            throw new RuntimeException("Could not load schema file " + getSchemaResourcePath(), e);
+        synchronized (MIGRATED_TABLES) {
+            try {
+                final int version = SchemaMigrator.migrate(getTableName(), getSchemaMigrations());
+                MIGRATED_TABLES.add(getTableName());
+                LOG.info("Schema of table [{}] is at version {}", getTableName(), version);
+            } catch (SQLException e) {
+                throw new RuntimeException("Could not create schema of table " + getTableName() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    protected void ensureSchema() {
+        if (!MIGRATED_TABLES.contains(getTableName())) {
+            createSchema();
         }
     }
 
@@ -49,25 +102,24 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
         } catch (Exception e) {
             throw new SQLException("Failed to destroy schema: " + e.getMessage(), e);
         }
+
+        MIGRATED_TABLES.remove(getTableName());
+        SchemaMigrator.resetVersion(getTableName());
     }
 
     public Optional<ROW> getByPrimaryKey(PK id) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
-        try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
-
-            final PreparedStatement statement = connection.prepareStatement(String.format("SELECT * FROM %s WHERE %s = ?", getTableName(), getPrimaryKeyName()));
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             PreparedStatement statement = connection.prepareStatement(String.format("SELECT * FROM %s WHERE %s = ?", getTableName(), getPrimaryKeyName()))) {
             statement.setObject(1, id);
-            final ResultSet resultSet = statement.executeQuery();
-
-            if (resultSet.next()) {
-                return Optional.of(createInstance(resultSet));
-            } else {
-                return Optional.empty();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                final List<ROW> rows = createFromResultSet(resultSet);
+                return rows.isEmpty() ? Optional.empty() : Optional.of(rows.get(0));
             }
-
         } catch (Exception e) {
-            return Optional.empty();
+            // a failed lookup must not be mistaken for a missing row
+            throw new SQLException("Error whilst selecting data from table: " + e.getMessage(), e);
         }
     }
 
@@ -75,10 +127,24 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
         return getBySelectStatement(String.format("SELECT * FROM %s ORDER BY %s", getTableName(), getPrimaryKeyName()));
     }
 
+    /**
+     * Streams all rows like {@link #streamByPreparedStatement(Function, int)}, the stream must be closed by the caller.
+     */
+    public Stream<ROW> streamAll() throws SQLException {
+        final String sql = String.format("SELECT * FROM %s ORDER BY %s", getTableName(), getPrimaryKeyName());
+        return streamByPreparedStatement(connection -> {
+            try {
+                return connection.prepareStatement(sql);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, DEFAULT_FETCH_SIZE);
+    }
+
     protected abstract String getPrimaryKeyName();
 
     private List<ROW> getBySelectStatement(String selectStatement) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
         try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
 
@@ -92,7 +158,7 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
     }
 
     public List<ROW> getByPreparedStatement(Function<Connection, PreparedStatement> handler) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
         try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
             final PreparedStatement statement = handler.apply(connection);
@@ -104,16 +170,133 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
         }
     }
 
+    /**
+     * Streams the rows of the query instead of reading them into a list first, so that only the rows that are currently
+     * processed are held in memory. The connection is kept open until the stream is closed, so the stream must be closed
+     * by the caller, preferably with a try-with-resources statement.
+     *
+     * @param fetchSize the amount of rows the driver is asked to fetch at once.
+     */
+    public Stream<ROW> streamByPreparedStatement(Function<Connection, PreparedStatement> handler, int fetchSize) throws SQLException {
+        this.ensureSchema();
+
+        final Connection connection = DatabaseHandler.getConnectionProvider().connection();
+        final PreparedStatement statement;
+        final ResultSet resultSet;
+        try {
+            statement = handler.apply(connection);
+            statement.setFetchSize(fetchSize);
+            resultSet = statement.executeQuery();
+        } catch (Exception e) {
+            closeQuietly(connection);
+            throw new SQLException("Error whilst selecting data from table: " + e.getMessage(), e);
+        }
+
+        final Spliterator<ROW> rows = new Spliterators.AbstractSpliterator<ROW>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private RowMapping.ResultSetColumns columns;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super ROW> action) {
+                try {
+                    if (!resultSet.next()) {
+                        return false;
+                    }
+                    final ROW row = createInstance();
+                    if (columns == null) {
+                        columns = row.getRowMapping().resolve(resultSet);
+                    }
+                    columns.read(row, resultSet);
+                    action.accept(row);
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException("Error whilst reading data from table: " + e.getMessage(), e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            closeQuietly(resultSet);
+            closeQuietly(statement);
+            closeQuietly(connection);
+        });
+    }
+
+    /**
+     * Passes every row of the query to the consumer without creating row instances, for queries that only select the
+     * columns they need. The connection is kept open until the consumer has received the last row.
+     *
+     * @param fetchSize the amount of rows the driver is asked to fetch at once.
+     */
+    public void forEachResult(Function<Connection, PreparedStatement> handler, int fetchSize, ResultRowConsumer consumer) throws SQLException {
+        this.ensureSchema();
+
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             PreparedStatement statement = handler.apply(connection)) {
+            statement.setFetchSize(fetchSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet);
+                }
+            }
+        } catch (Exception e) {
+            throw new SQLException("Error whilst selecting data from table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the first column of every row of the query, for example {@code SELECT id FROM ...}.
+     */
+    public long[] getLongs(Function<Connection, PreparedStatement> handler) throws SQLException {
+        this.ensureSchema();
+
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             PreparedStatement statement = handler.apply(connection)) {
+            statement.setFetchSize(DEFAULT_FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                long[] values = new long[64];
+                int count = 0;
+                while (resultSet.next()) {
+                    if (count == values.length) {
+                        values = Arrays.copyOf(values, values.length * 2);
+                    }
+                    values[count++] = resultSet.getLong(1);
+                }
+                return Arrays.copyOf(values, count);
+            }
+        } catch (Exception e) {
+            throw new SQLException("Error whilst selecting data from table: " + e.getMessage(), e);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to close {}: {}", closeable.getClass().getSimpleName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Reads all remaining rows of the result set. The columns of the rows are looked up in the result set once.
+     */
     public List<ROW> createFromResultSet(ResultSet result) throws SQLException {
         final List<ROW> rows = new ArrayList<>();
+        RowMapping.ResultSetColumns columns = null;
         while (result.next()) {
-            rows.add(createInstance(result));
+            final ROW row = createInstance();
+            if (columns == null) {
+                columns = row.getRowMapping().resolve(result);
+            }
+            columns.read(row, result);
+            rows.add(row);
         }
         return rows;
     }
 
     public ROW insert(ROW row) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
         try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
 
@@ -126,8 +309,139 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
         }
     }
 
+    /**
+     * Inserts all rows over a single connection, committing every {@code batchSize} rows.
+     * Rows that fail to insert are logged and skipped.
+     *
+     * @param rows      the rows to insert.
+     * @param batchSize the amount of rows per transaction.
+     * @return the amount of rows that were inserted.
+     */
+    public int insertAll(Collection<ROW> rows, int batchSize) throws SQLException {
+        this.ensureSchema();
+
+        try (final JdbcBatch<ROW> batch = new JdbcBatch<>(openConnection(), batchSize)) {
+            for (ROW row : rows) {
+                batch.add(row);
+            }
+            batch.flush();
+            return batch.getInserted();
+        } catch (Exception e) {
+            throw new SQLException("Error whilst batch inserting data into table: " + e.getMessage(), e);
+        }
+    }
+
+    public int insertAll(Collection<ROW> rows) throws SQLException {
+        return insertAll(rows, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a sink that can be fed rows from multiple threads and inserts them in transactional batches on a
+     * background thread. The sink must be closed to commit the remaining rows.
+     *
+     * @param queueCapacity the maximum amount of rows waiting to be inserted before producers are blocked.
+     * @param batchSize     the amount of rows per transaction.
+     * @return the batch inserter.
+     */
+    public JdbcBatchInserter<ROW> batchInserter(int queueCapacity, int batchSize) {
+        return batchInserter(queueCapacity, batchSize, row -> {
+        });
+    }
+
+    /**
+     * Creates a sink like {@link #batchInserter(int, int)}, that passes every row to the listener on the writer thread
+     * once it has been committed.
+     */
+    public JdbcBatchInserter<ROW> batchInserter(int queueCapacity, int batchSize, Consumer<ROW> written) {
+        this.ensureSchema();
+
+        return new JdbcBatchInserter<>(this, queueCapacity, batchSize, false, written);
+    }
+
+    /**
+     * Creates a sink like {@link #batchInserter(int, int)}, that updates rows whose primary key already exists instead
+     * of failing to insert them.
+     */
+    public JdbcBatchInserter<ROW> batchUpserter(int queueCapacity, int batchSize) {
+        return batchUpserter(queueCapacity, batchSize, row -> {
+        });
+    }
+
+    /**
+     * Creates a sink like {@link #batchUpserter(int, int)}, that passes every row to the listener on the writer thread
+     * once it has been committed.
+     */
+    public JdbcBatchInserter<ROW> batchUpserter(int queueCapacity, int batchSize, Consumer<ROW> written) {
+        this.ensureSchema();
+
+        return new JdbcBatchInserter<>(this, queueCapacity, batchSize, true, written);
+    }
+
+    /**
+     * Inserts the rows, or updates the existing rows with the same primary key, in transactional batches.
+     *
+     * @return the amount of rows that have been written.
+     */
+    public int upsertAll(Collection<ROW> rows, int batchSize) throws SQLException {
+        this.ensureSchema();
+
+        try (final JdbcBatch<ROW> batch = new JdbcBatch<>(openConnection(), batchSize, true)) {
+            for (ROW row : rows) {
+                batch.add(row);
+            }
+            batch.flush();
+            return batch.getInserted();
+        } catch (Exception e) {
+            throw new SQLException("Error whilst batch upserting data into table: " + e.getMessage(), e);
+        }
+    }
+
+    public int upsertAll(Collection<ROW> rows) throws SQLException {
+        return upsertAll(rows, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Deletes all rows that match the condition with a single statement.
+     *
+     * @param whereClause the condition, with {@code ?} placeholders for the parameters.
+     * @return the amount of deleted rows.
+     */
+    public int deleteWhere(String whereClause, Object... parameters) throws SQLException {
+        return executeUpdate(String.format("DELETE FROM %s WHERE %s", getTableName(), whereClause), parameters);
+    }
+
+    /**
+     * Updates all rows that match the condition with a single statement.
+     *
+     * @param setClause   the assignments, for example {@code media_type = ?}, with {@code ?} placeholders.
+     * @param whereClause the condition, with {@code ?} placeholders.
+     * @param parameters  the parameters of the assignments, followed by those of the condition.
+     * @return the amount of updated rows.
+     */
+    public int updateWhere(String setClause, String whereClause, Object... parameters) throws SQLException {
+        return executeUpdate(String.format("UPDATE %s SET %s WHERE %s", getTableName(), setClause, whereClause), parameters);
+    }
+
+    private int executeUpdate(String sql, Object... parameters) throws SQLException {
+        this.ensureSchema();
+
+        try (Connection connection = openConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            return statement.executeUpdate();
+        } catch (Exception e) {
+            throw new SQLException("Error whilst modifying data of table: " + e.getMessage(), e);
+        }
+    }
+
+    Connection openConnection() throws SQLException {
+        return DatabaseHandler.getConnectionProvider().connection();
+    }
+
     public void update(ROW foundToDo) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
         try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
 
@@ -144,7 +458,7 @@ public abstract class JdbcTable<ROW extends JdbcRow, PK> {
     }
 
     public void delete(ROW todo) throws SQLException {
-        this.createSchema();
+        this.ensureSchema();
 
         try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
 
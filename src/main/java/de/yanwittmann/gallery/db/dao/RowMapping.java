@@ -0,0 +1,204 @@
+package de.yanwittmann.gallery.db.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The columns of a {@link JdbcRow} class, found once per class instead of once per row.
+ * <p>
+ * The annotated fields are accessed through method handles, which the JIT compiles like direct field accesses, and the
+ * indices of the columns in a result set are resolved once for all rows of that result set, see {@link #resolve}.
+ */
+class RowMapping {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RowMapping.class);
+
+    private static final ClassValue<RowMapping> MAPPINGS = new ClassValue<>() {
+        @Override
+        protected RowMapping computeValue(Class<?> type) {
+            return new RowMapping(type);
+        }
+    };
+
+    static RowMapping of(Class<? extends JdbcRow> type) {
+        return MAPPINGS.get(type);
+    }
+
+    static class ColumnMapping {
+        private final String name;
+        private final Column column;
+        private final Function<Object, Object> resultSetToField;
+        private final Function<Object, Object> fieldToResultSet;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private ColumnMapping(Field field, MethodHandles.Lookup lookup) throws IllegalAccessException {
+            this.column = field.getAnnotation(Column.class);
+            this.name = column.name();
+            this.resultSetToField = column.resultSetToField().getMapper();
+            this.fieldToResultSet = column.fieldToResultSet().getMapper();
+            this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, JdbcRow.class));
+            this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, JdbcRow.class, Object.class));
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Column getColumn() {
+            return column;
+        }
+
+        Object get(JdbcRow row) {
+            try {
+                return (Object) getter.invokeExact(row);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not read column [" + name + "] of " + row.getClass().getSimpleName(), e);
+            }
+        }
+
+        void set(JdbcRow row, Object value) {
+            try {
+                setter.invokeExact(row, value);
+            } catch (Throwable e) {
+                throw new IllegalArgumentException("Could not set column [" + name + "] of " + row.getClass().getSimpleName() + " to [" + value + "]", e);
+            }
+        }
+
+        /**
+         * @return the value of the column in the row, converted for the database.
+         */
+        Object getForDatabase(JdbcRow row) {
+            return fieldToResultSet.apply(get(row));
+        }
+
+        /**
+         * Sets the value of the column from the given value as returned by the database.
+         */
+        void setFromDatabase(JdbcRow row, Object value) {
+            set(row, resultSetToField.apply(value));
+        }
+    }
+
+    /**
+     * The indices of the columns of a row class in a result set, resolved once and used for all rows of the result set.
+     */
+    class ResultSetColumns {
+        private final int[] indices;
+
+        private ResultSetColumns(int[] indices) {
+            this.indices = indices;
+        }
+
+        /**
+         * Sets the columns of the row from the current row of the result set. Columns that are not part of the result
+         * set are left unchanged.
+         */
+        void read(JdbcRow row, ResultSet resultSet) throws SQLException {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] > 0) {
+                    final Object value = resultSet.getObject(indices[i]);
+                    try {
+                        columns.get(i).setFromDatabase(row, value);
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not map value [{}] of column [{}] to {}", value, columns.get(i).getName(), row.getClass().getSimpleName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private final List<ColumnMapping> columns;
+    private final Map<String, ColumnMapping> columnsByName;
+    private final ColumnMapping primaryKey;
+
+    private RowMapping(Class<?> type) {
+        final MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access the columns of [" + type.getSimpleName() + "]", e);
+        }
+
+        final List<ColumnMapping> columns = new ArrayList<>();
+        final Map<String, ColumnMapping> columnsByName = new HashMap<>();
+        ColumnMapping primaryKey = null;
+
+        for (Field field : type.getDeclaredFields()) {
+            if (!field.isAnnotationPresent(Column.class) || Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+
+            final ColumnMapping column;
+            try {
+                column = new ColumnMapping(field, lookup);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access column field [" + field.getName() + "] of [" + type.getSimpleName() + "]", e);
+            }
+            columns.add(column);
+            columnsByName.put(column.getName(), column);
+
+            if (field.isAnnotationPresent(PrimaryKey.class)) {
+                primaryKey = column;
+            }
+        }
+
+        this.columns = Collections.unmodifiableList(columns);
+        this.columnsByName = columnsByName;
+        this.primaryKey = primaryKey;
+    }
+
+    /**
+     * @return the columns in the order of their declaration.
+     */
+    List<ColumnMapping> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the column with the given name, or null if there is none.
+     */
+    ColumnMapping getColumn(String name) {
+        return columnsByName.get(name);
+    }
+
+    /**
+     * @return the primary key column, or null if there is none.
+     */
+    ColumnMapping getPrimaryKey() {
+        return primaryKey;
+    }
+
+    /**
+     * Finds the index of every column in the result set.
+     */
+    ResultSetColumns resolve(ResultSet resultSet) throws SQLException {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final Map<String, Integer> resultSetColumns = new HashMap<>();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            // the first column with a name takes precedence
+            resultSetColumns.put(metaData.getColumnName(i), i);
+        }
+
+        final int[] indices = new int[columns.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = resultSetColumns.getOrDefault(columns.get(i).getName(), 0);
+        }
+        return new ResultSetColumns(indices);
+    }
+}
@@ -0,0 +1,93 @@
+package de.yanwittmann.gallery.db.migration;
+
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A single versioned change to the schema of a table.
+ * Migrations of a table are applied in the order of their versions, each one exactly once.
+ */
+public abstract class SchemaMigration {
+
+    private final int version;
+    private final String description;
+
+    protected SchemaMigration(int version, String description) {
+        if (version < 1) {
+            throw new IllegalArgumentException("Migration version must be at least 1, got " + version);
+        }
+        this.version = version;
+        this.description = description;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Applies this migration. The connection is in a transaction that is committed together with the new schema
+     * version of the table once this method returns.
+     *
+     * @param connection the connection to apply the migration on.
+     */
+    public abstract void apply(Connection connection) throws SQLException;
+
+    @FunctionalInterface
+    public interface MigrationStep {
+        void apply(Connection connection) throws SQLException;
+    }
+
+    public static SchemaMigration of(int version, String description, MigrationStep step) {
+        return new SchemaMigration(version, description) {
+            @Override
+            public void apply(Connection connection) throws SQLException {
+                step.apply(connection);
+            }
+        };
+    }
+
+    /**
+     * Creates a migration from a SQL script on the classpath.
+     * Every line of the script is executed as one statement, empty lines and lines starting with {@code --} are skipped.
+     *
+     * @param version      the version of the table after this migration.
+     * @param resourcePath the classpath location of the script.
+     * @return the migration.
+     */
+    public static SchemaMigration script(int version, String resourcePath) {
+        return of(version, resourcePath, connection -> {
+            try (final InputStream is = new ClassPathResource(resourcePath).getInputStream();
+                 final BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+                String sqlLine;
+                while ((sqlLine = br.readLine()) != null) {
+                    sqlLine = sqlLine.trim();
+                    if (sqlLine.isEmpty() || sqlLine.startsWith("--")) {
+                        continue;
+                    }
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.execute(sqlLine);
+                    }
+                }
+            } catch (IOException e) {
+                throw new SQLException("Could not load schema file " + resourcePath, e);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "V" + version + " (" + description + ")";
+    }
+}
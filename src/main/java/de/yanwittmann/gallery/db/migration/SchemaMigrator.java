@@ -0,0 +1,93 @@
+package de.yanwittmann.gallery.db.migration;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Brings the schema of a table up to date by applying all of its migrations that are newer than the version recorded
+ * in the {@value #VERSION_TABLE} table.
+ */
+public abstract class SchemaMigrator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaMigrator.class);
+
+    public static final String VERSION_TABLE = "schema_version";
+
+    /**
+     * @param tableName  the table the migrations belong to.
+     * @param migrations all migrations of the table, in any order.
+     * @return the schema version of the table after the migration.
+     */
+    public static int migrate(String tableName, List<SchemaMigration> migrations) throws SQLException {
+        final List<SchemaMigration> sortedMigrations = new ArrayList<>(migrations);
+        sortedMigrations.sort(Comparator.comparingInt(SchemaMigration::getVersion));
+
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS \"" + VERSION_TABLE + "\" (\"table_name\" TEXT PRIMARY KEY NOT NULL, \"version\" INTEGER NOT NULL, \"applied_at\" DATETIME DEFAULT CURRENT_TIMESTAMP)");
+            }
+
+            int currentVersion = getVersion(connection, tableName);
+
+            for (SchemaMigration migration : sortedMigrations) {
+                if (migration.getVersion() <= currentVersion) {
+                    continue;
+                }
+
+                LOG.info("Migrating table [{}] from version {} to {}", tableName, currentVersion, migration);
+                connection.setAutoCommit(false);
+                try {
+                    migration.apply(connection);
+                    setVersion(connection, tableName, migration.getVersion());
+                    connection.commit();
+                } catch (Exception e) {
+                    connection.rollback();
+                    throw new SQLException("Failed to migrate table [" + tableName + "] to " + migration + ": " + e.getMessage(), e);
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                currentVersion = migration.getVersion();
+            }
+
+            return currentVersion;
+        }
+    }
+
+    public static int getVersion(Connection connection, String tableName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT version FROM \"" + VERSION_TABLE + "\" WHERE table_name = ?")) {
+            statement.setString(1, tableName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        }
+    }
+
+    private static void setVersion(Connection connection, String tableName, int version) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO \"" + VERSION_TABLE + "\" (table_name, version, applied_at) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            statement.setString(1, tableName);
+            statement.setInt(2, version);
+            statement.executeUpdate();
+        }
+    }
+
+    public static void resetVersion(String tableName) throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             PreparedStatement statement = connection.prepareStatement("DELETE FROM \"" + VERSION_TABLE + "\" WHERE table_name = ?")) {
+            statement.setString(1, tableName);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            // the version table does not exist yet, so there is nothing to reset
+            LOG.debug("Could not reset schema version of table [{}]: {}", tableName, e.getMessage());
+        }
+    }
+}
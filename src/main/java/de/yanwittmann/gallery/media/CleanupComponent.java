@@ -1,32 +1,40 @@
 package de.yanwittmann.gallery.media;
 
-import de.yanwittmann.gallery.MediaGalleryConfig;
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @Component
 public class CleanupComponent {
 
     private static final Logger LOG = LoggerFactory.getLogger(CleanupComponent.class);
 
+    private final List<Runnable> beforeDatabaseClosed = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a task that stops something that still uses the database, such as the media directory watcher. The
+     * tasks are run before the database connections are closed.
+     */
+    public void beforeDatabaseClosed(Runnable task) {
+        beforeDatabaseClosed.add(task);
+    }
+
     @PreDestroy
     public void cleanup() {
-        LOG.info("Cleaning up thumbnails");
-        final File[] files = MediaGalleryConfig.getThumbsDir().listFiles();
-        if (files == null) return;
-        for (File file : files) {
+        for (Runnable task : beforeDatabaseClosed) {
             try {
-                Files.delete(file.toPath());
-            } catch (IOException e) {
-                LOG.error("Error deleting file", e);
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to run cleanup task before closing the database connections", e);
             }
         }
+
+        LOG.info("Closing database connections");
+        DatabaseHandler.closeConnectionProvider();
     }
 }
-
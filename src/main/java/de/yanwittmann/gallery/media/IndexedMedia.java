@@ -0,0 +1,32 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.media.db.MediaRow;
+
+/**
+ * What the indexer needs to know about a media entry that is already in the media table: whether it belongs to the
+ * path that is being indexed, and whether it has to be written again.
+ */
+class IndexedMedia {
+
+    /**
+     * The last edited time of the entry, or -1 if it lacks attributes and must be written again.
+     */
+    private final long lastEdited;
+    private final long pathCheck;
+
+    IndexedMedia(long lastEdited, long pathCheck) {
+        this.lastEdited = lastEdited;
+        this.pathCheck = pathCheck;
+    }
+
+    long getLastEdited() {
+        return lastEdited;
+    }
+
+    /**
+     * @return whether the entry has been indexed for the given path, as opposed to another path with the same id.
+     */
+    boolean isOf(String file) {
+        return pathCheck == MediaRow.calculatePathCheck(file);
+    }
+}
@@ -0,0 +1,63 @@
+package de.yanwittmann.gallery.media;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in an ordered media listing, made from the sort key and id of the last media entry the client has received.
+ * The next page starts directly after this entry, so it can be looked up via the sort indexes instead of skipping all
+ * previous rows with an offset.
+ * <p>
+ * Clients only ever see the encoded form and must treat it as opaque.
+ */
+public class MediaCursor {
+
+    private final long lastEdited;
+    private final String file;
+    private final long id;
+
+    public MediaCursor(long lastEdited, String file, long id) {
+        this.lastEdited = lastEdited;
+        this.file = file;
+        this.id = id;
+    }
+
+    public long getLastEdited() {
+        return lastEdited;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String encode() {
+        final String json = new JSONObject()
+                .put("d", lastEdited)
+                .put("f", file)
+                .put("i", id)
+                .toString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param encoded a cursor as created by {@link #encode()}.
+     * @return the decoded cursor.
+     * @throws IllegalArgumentException if the cursor is malformed.
+     */
+    public static MediaCursor decode(String encoded) {
+        try {
+            final String json = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            final JSONObject object = new JSONObject(json);
+            return new MediaCursor(object.getLong("d"), object.getString("f"), object.getLong("i"));
+        } catch (IllegalArgumentException | JSONException e) {
+            throw new IllegalArgumentException("Malformed media cursor: " + encoded, e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package de.yanwittmann.gallery.media;
+
+import java.util.List;
+
+public class MediaCursorPage {
+
+    private final List<Long> ids;
+    private final MediaCursor next;
+
+    public MediaCursorPage(List<Long> ids, MediaCursor next) {
+        this.ids = ids;
+        this.next = next;
+    }
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    /**
+     * @return the cursor to request the following page with, or null if this is the last page.
+     */
+    public MediaCursor getNext() {
+        return next;
+    }
+}
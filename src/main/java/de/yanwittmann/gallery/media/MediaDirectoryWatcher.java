@@ -0,0 +1,299 @@
+package de.yanwittmann.gallery.media;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the media table up to date with the media directories by watching them for changes.
+ * <p>
+ * Every directory below a media directory is registered with a {@link WatchService}, new directories are registered as
+ * soon as they are created. Events arrive in bursts while files are copied, so the changed paths are collected until no
+ * event has been received for the debounce delay, but at most for the maximum delay, and then applied to the media
+ * table together via {@link MediaService#applyChanges(File, java.util.Collection)}.
+ * <p>
+ * If the event queue of the watch service overflows, events have been lost and the media directory is rescanned
+ * incrementally. The same applies if a directory cannot be registered, for example because the limit of watches of the
+ * operating system has been reached. Such media directories are additionally rescanned periodically from then on, as
+ * their watches cannot be relied on anymore.
+ */
+public class MediaDirectoryWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MediaDirectoryWatcher.class);
+
+    private final MediaService mediaService;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final long fallbackScanMillis;
+
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * The media directory that each watched directory belongs to, by watch key.
+     */
+    private final Map<WatchKey, Path> keyRoots = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> keyDirectories = new ConcurrentHashMap<>();
+    /**
+     * Media directories whose watches have missed events, mapped to the time of their last scan.
+     */
+    private final Map<Path, Long> fallbackRoots = new ConcurrentHashMap<>();
+
+    // only accessed by the watcher thread
+    private final Map<Path, Set<Path>> pendingChanges = new HashMap<>();
+    private final Set<Path> pendingRescans = new LinkedHashSet<>();
+    private volatile boolean closed = false;
+    private long firstPendingEvent = 0;
+    private long lastPendingEvent = 0;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param debounceMillis     changes are applied once no event has been received for this long.
+     * @param maxDelayMillis     changes are applied after this long even if events keep arriving.
+     * @param fallbackScanMillis the interval of the incremental scans of media directories whose watches have missed
+     *                           events.
+     */
+    public MediaDirectoryWatcher(MediaService mediaService, long debounceMillis, long maxDelayMillis, long fallbackScanMillis) throws IOException {
+        this.mediaService = mediaService;
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.fallbackScanMillis = fallbackScanMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        this.thread = new Thread(this::run, "media-directory-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private static Path toRoot(File mediaDirectory) {
+        return Path.of(mediaDirectory.toURI());
+    }
+
+    /**
+     * Registers the media directory and all directories below it.
+     */
+    public void watch(File mediaDirectory) {
+        final Path root = toRoot(mediaDirectory);
+        if (!Files.isDirectory(root)) {
+            LOG.warn("Cannot watch media directory, it is not a directory: {}", root);
+            return;
+        }
+        if (keyRoots.containsValue(root)) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        registerRecursively(root, root);
+        LOG.info("Watching media directory: {} ({} directories registered in {}ms)", root,
+                keyRoots.values().stream().filter(root::equals).count(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Cancels the watches of the media directory.
+     */
+    public void unwatch(File mediaDirectory) {
+        final Path root = toRoot(mediaDirectory);
+        keyRoots.entrySet().removeIf(entry -> {
+            if (entry.getValue().equals(root)) {
+                entry.getKey().cancel();
+                keyDirectories.remove(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        fallbackRoots.remove(root);
+    }
+
+    private void registerRecursively(Path directory, Path root) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    final WatchKey key = dir.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    keyRoots.put(key, root);
+                    keyDirectories.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // the directory has been removed again or cannot be read, there is nothing to watch in it
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Failed to watch directory {}, falling back to periodic scans of media directory {}: {}", directory, root, e.toString());
+            fallbackRoots.putIfAbsent(root, System.currentTimeMillis());
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            final WatchKey key;
+            try {
+                key = watchService.poll(getPollTimeout(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key != null) {
+                collectEvents(key);
+            }
+
+            try {
+                final long now = System.currentTimeMillis();
+                if (isPendingDue(now)) {
+                    applyPending();
+                }
+                scanFallbackRoots(now);
+            } catch (Exception e) {
+                // the watcher must keep running, the changes are picked up by the next scan of the directory
+                LOG.error("Failed to apply changes of media directories", e);
+            }
+        }
+    }
+
+    private long getPollTimeout() {
+        if (firstPendingEvent == 0) {
+            // media directories can fall back to periodic scans at any time, as they are registered from other threads
+            return fallbackScanMillis;
+        }
+        final long dueAt = Math.min(lastPendingEvent + debounceMillis, firstPendingEvent + maxDelayMillis);
+        return Math.max(1, dueAt - System.currentTimeMillis());
+    }
+
+    private boolean isPendingDue(long now) {
+        return firstPendingEvent != 0 && (now - lastPendingEvent >= debounceMillis || now - firstPendingEvent >= maxDelayMillis);
+    }
+
+    private void collectEvents(WatchKey key) {
+        final Path root = keyRoots.get(key);
+        final Path directory = keyDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events.incrementAndGet();
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflows.incrementAndGet();
+                // the overflow is not specific to a directory, so every media directory may have missed events
+                for (Path watchedRoot : new LinkedHashSet<>(keyRoots.values())) {
+                    LOG.warn("Watch events of media directory have been lost, scanning it: {}", watchedRoot);
+                    pendingRescans.add(watchedRoot);
+                    fallbackRoots.putIfAbsent(watchedRoot, System.currentTimeMillis());
+                }
+            } else if (root != null && directory != null) {
+                final Path changed = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                    // files may have been created in the directory before it was registered, they are found by
+                    // applying the directory itself as a change
+                    registerRecursively(changed, root);
+                }
+                pendingChanges.computeIfAbsent(root, r -> new LinkedHashSet<>()).add(changed);
+            }
+
+            final long now = System.currentTimeMillis();
+            if (firstPendingEvent == 0) {
+                firstPendingEvent = now;
+            }
+            lastPendingEvent = now;
+        }
+
+        if (!key.reset()) {
+            // the directory has been deleted, its media are removed by the event of its parent directory
+            keyRoots.remove(key);
+            keyDirectories.remove(key);
+        }
+    }
+
+    private void applyPending() {
+        final List<Path> rescans = new ArrayList<>(pendingRescans);
+        final Map<Path, Set<Path>> changes = new HashMap<>(pendingChanges);
+        pendingRescans.clear();
+        pendingChanges.clear();
+        firstPendingEvent = 0;
+        lastPendingEvent = 0;
+
+        for (Path root : rescans) {
+            if (closed) {
+                return;
+            }
+            changes.remove(root);
+            mediaService.rescanMedia(root.toFile());
+            fallbackRoots.computeIfPresent(root, (r, lastScan) -> System.currentTimeMillis());
+        }
+        for (Map.Entry<Path, Set<Path>> entry : changes.entrySet()) {
+            if (closed) {
+                return;
+            }
+            final MediaIndexingResult result = mediaService.applyChanges(entry.getKey().toFile(), entry.getValue());
+            LOG.info("Applied {} changed paths of media directory: {} ({})", entry.getValue().size(), entry.getKey(), result);
+        }
+        batches.incrementAndGet();
+    }
+
+    private void scanFallbackRoots(long now) {
+        for (Map.Entry<Path, Long> entry : fallbackRoots.entrySet()) {
+            if (now - entry.getValue() >= fallbackScanMillis && !closed) {
+                LOG.info("Periodically scanning media directory, as its watches have missed events: {}", entry.getKey());
+                entry.setValue(now);
+                mediaService.rescanMedia(entry.getKey().toFile());
+            }
+        }
+    }
+
+    /**
+     * Stops watching the media directories and waits for the changes that are being applied, so that the media table is
+     * not written to by the watcher anymore once this returns. Changes that are still pending are dropped, they are
+     * found by the next scan of the media directories.
+     */
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close watch service", e);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("watchedDirectories", keyRoots.size())
+                .put("events", events.get())
+                .put("batches", batches.get())
+                .put("overflows", overflows.get())
+                .put("fallbackScanned", fallbackRoots.keySet().stream().map(Path::toString).toArray());
+    }
+}
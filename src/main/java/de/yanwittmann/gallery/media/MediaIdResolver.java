@@ -0,0 +1,124 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns the ids of media files while indexing.
+ * <p>
+ * The id of a file is the {@link MediaRow#calculateId(String, int) hash of its path}. If that id is already taken by
+ * another path, the id is probed with the next seed until a free one is found, so that colliding paths do not fail to be
+ * inserted. Files that are already indexed keep the id they have been indexed with.
+ * <p>
+ * Instances are used for a single indexing run and can be called from several threads.
+ */
+class MediaIdResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MediaIdResolver.class);
+
+    private static final int MAX_PROBES = 16;
+
+    private final MediaService mediaService;
+    private final MediaTable mediaTable;
+    private final long basePathHash;
+    private final long[] existingIds;
+
+    /**
+     * Ids that have been assigned to new files during this run, which are not in the media table yet.
+     */
+    private final Map<Long, String> claimed = new ConcurrentHashMap<>();
+
+    /**
+     * @param basePathHash the hash of the media directory that is indexed.
+     * @param existingIds  all ids of the media table in ascending order, or null to look each candidate up in the
+     *                     media table instead, which is faster for small amounts of files.
+     */
+    MediaIdResolver(MediaService mediaService, MediaTable mediaTable, long basePathHash, long[] existingIds) {
+        this.mediaService = mediaService;
+        this.mediaTable = mediaTable;
+        this.basePathHash = basePathHash;
+        this.existingIds = existingIds;
+    }
+
+    /**
+     * @param file    the absolute path of the media file.
+     * @param indexed the entries of the media table that may belong to the file, by id. If the entry of the file is
+     *                found in the media table instead, it is added to the map.
+     * @return the id of the file, or null if the file is indexed as part of another media directory.
+     */
+    Long resolve(String file, Map<Long, IndexedMedia> indexed) throws SQLException {
+        while (true) {
+            // the file may have been indexed with a probed id whose predecessors have been freed since, so the whole
+            // probe sequence is searched for the file before the first free id is claimed
+            long free = 0;
+            int freeAttempt = -1;
+
+            for (int attempt = 0; attempt < MAX_PROBES; attempt++) {
+                final long candidate = MediaRow.calculateId(file, attempt);
+
+                final IndexedMedia indexedMedia = indexed.get(candidate);
+                if (indexedMedia != null) {
+                    if (indexedMedia.isOf(file)) {
+                        return candidate;
+                    }
+                    logCollision(file, candidate, attempt);
+                    continue;
+                }
+
+                if (existingIds == null || Arrays.binarySearch(existingIds, candidate) >= 0) {
+                    final Optional<MediaRow> existing = mediaTable.getByPrimaryKey(candidate);
+                    if (existing.isPresent()) {
+                        final MediaRow row = existing.get();
+                        if (!row.getFileAsString().equals(file)) {
+                            logCollision(file, candidate, attempt);
+                            continue;
+                        }
+                        if (row.getBasePathHash() != basePathHash) {
+                            return null;
+                        }
+                        indexed.putIfAbsent(candidate, mediaService.toIndexedMedia(row));
+                        return candidate;
+                    }
+                }
+
+                final String claimedBy = claimed.get(candidate);
+                if (claimedBy != null) {
+                    if (claimedBy.equals(file)) {
+                        return candidate;
+                    }
+                    logCollision(file, candidate, attempt);
+                    continue;
+                }
+
+                if (freeAttempt < 0) {
+                    free = candidate;
+                    freeAttempt = attempt;
+                }
+            }
+
+            if (freeAttempt < 0) {
+                throw new SQLException("Could not find a free id for media file " + file + " after " + MAX_PROBES + " attempts");
+            }
+            // another file may have claimed the id in the meantime, in which case the probe sequence is searched again
+            final String claimedBy = claimed.putIfAbsent(free, file);
+            if (claimedBy == null || claimedBy.equals(file)) {
+                if (freeAttempt > 0) {
+                    LOG.warn("Assigned probed id {} to media file {} after {} collisions", free, file, freeAttempt);
+                }
+                return free;
+            }
+        }
+    }
+
+    private static void logCollision(String file, long candidate, int attempt) {
+        LOG.warn("Id {} of media file {} collides with another media file (attempt {}), probing the next id", candidate, file, attempt);
+    }
+}
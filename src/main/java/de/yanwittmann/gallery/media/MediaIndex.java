@@ -0,0 +1,307 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.db.dao.JdbcTable;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable in-memory snapshot of the media table that answers the page, count and summary queries of the timeline
+ * without going to the database.
+ * <p>
+ * All entries are stored in primitive arrays in date order ({@code last_edited, file}); a second array holds the
+ * entry indices in name order ({@code file, last_edited}). Videos and the entries of each media directory are marked
+ * in bitsets over the entry indices. For every combination of order and filters that is requested, the matching entry
+ * indices are collected once into an ascending array, so that every page is a slice of that array and descending pages
+ * are read from its end.
+ */
+public class MediaIndex {
+
+    private final long[] ids;
+    private final long[] lastEdited;
+    private final String[] files;
+    private final int[] nameOrder;
+    private final int[] dateOrder;
+
+    private final BitSet videos;
+    private final Map<Long, BitSet> basePaths;
+
+    private final Map<String, int[]> views = new ConcurrentHashMap<>();
+
+    private MediaIndex(long[] ids, long[] lastEdited, String[] files, int[] nameOrder, BitSet videos, Map<Long, BitSet> basePaths) {
+        this.ids = ids;
+        this.lastEdited = lastEdited;
+        this.files = files;
+        this.nameOrder = nameOrder;
+        this.dateOrder = IntStream.range(0, ids.length).toArray();
+        this.videos = videos;
+        this.basePaths = basePaths;
+    }
+
+    public static MediaIndex build(MediaTable mediaTable) throws SQLException {
+        final Builder builder = new Builder(mediaTable.count());
+        mediaTable.forEachResult(connection -> {
+            try {
+                return connection.prepareStatement("SELECT id, file, last_edited, base_path_hash, media_type FROM " + mediaTable.getTableName() + " ORDER BY last_edited, file");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, JdbcTable.DEFAULT_FETCH_SIZE, builder::add);
+        return builder.build();
+    }
+
+    /**
+     * Reads the entries straight into the arrays of the index, without creating a media row per entry.
+     */
+    private static class Builder {
+        private long[] ids;
+        private long[] lastEdited;
+        private String[] files;
+        private final BitSet videos = new BitSet();
+        private final Map<Long, BitSet> basePaths = new HashMap<>();
+        private int size = 0;
+
+        private Builder(int expectedSize) {
+            this.ids = new long[expectedSize];
+            this.lastEdited = new long[expectedSize];
+            this.files = new String[expectedSize];
+        }
+
+        private void add(ResultSet resultSet) throws SQLException {
+            if (size == ids.length) {
+                // media have been added since they were counted
+                final int capacity = Math.max(16, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                lastEdited = Arrays.copyOf(lastEdited, capacity);
+                files = Arrays.copyOf(files, capacity);
+            }
+            ids[size] = resultSet.getLong("id");
+            files[size] = resultSet.getString("file");
+            lastEdited[size] = MediaTable.getLastEditedMillis(resultSet, "last_edited");
+            if (MediaRow.MEDIA_TYPE_VIDEO.equals(resultSet.getString("media_type"))) {
+                videos.set(size);
+            }
+            basePaths.computeIfAbsent(resultSet.getLong("base_path_hash"), hash -> new BitSet()).set(size);
+            size++;
+        }
+
+        private MediaIndex build() {
+            return create(Arrays.copyOf(ids, size), Arrays.copyOf(lastEdited, size), Arrays.copyOf(files, size), videos, basePaths);
+        }
+    }
+
+    private static MediaIndex create(long[] ids, long[] lastEdited, String[] files, BitSet videos, Map<Long, BitSet> basePaths) {
+        final int size = ids.length;
+        final int[] nameOrder = IntStream.range(0, size)
+                .boxed()
+                .sorted(Comparator.<Integer, String>comparing(i -> files[i]).thenComparingLong(i -> lastEdited[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        return new MediaIndex(ids, lastEdited, files, nameOrder, videos, basePaths);
+    }
+
+    /**
+     * Creates a new index with the given rows written and the given ids removed, without reading the media table. The
+     * entries that are kept and the written rows are both already sorted, so both orders are merged instead of sorted
+     * again. Applying the same changes more than once has no further effect.
+     *
+     * @param writtenRows rows that have been inserted or updated, replacing the entries with the same ids.
+     * @param deletedIds  ids of entries that have been removed.
+     */
+    public MediaIndex withChanges(Collection<MediaRow> writtenRows, Collection<Long> deletedIds) {
+        final Set<Long> removedIds = new HashSet<>(deletedIds);
+        final Map<Long, MediaRow> addedRows = new HashMap<>();
+        for (MediaRow row : writtenRows) {
+            if (!deletedIds.contains(row.getId())) {
+                addedRows.put(row.getId(), row);
+            }
+            removedIds.add(row.getId());
+        }
+        if (removedIds.isEmpty()) {
+            return this;
+        }
+
+        final MediaRow[] added = addedRows.values().toArray(new MediaRow[0]);
+        Arrays.sort(added, Comparator.<MediaRow>comparingLong(MediaIndex::getLastEditedMillis).thenComparing(MediaRow::getFileAsString));
+
+        int kept = 0;
+        for (long id : ids) {
+            if (!removedIds.contains(id)) {
+                kept++;
+            }
+        }
+
+        final int size = kept + added.length;
+        final long[] newIds = new long[size];
+        final long[] newLastEdited = new long[size];
+        final String[] newFiles = new String[size];
+        final BitSet newVideos = new BitSet();
+        final Map<Long, BitSet> newBasePaths = new HashMap<>();
+        // the new entry index of every kept entry and every added row, -1 for entries that are removed
+        final int[] keptEntries = new int[ids.length];
+        final int[] addedEntries = new int[added.length];
+
+        int entry = 0;
+        int addedIndex = 0;
+        for (int oldEntry = 0; oldEntry <= ids.length; oldEntry++) {
+            // the added rows that are sorted before the entry, or all remaining rows after the last entry
+            while (addedIndex < added.length && (oldEntry == ids.length || compareByDate(added[addedIndex], lastEdited[oldEntry], files[oldEntry]) < 0)) {
+                final MediaRow row = added[addedIndex];
+                newIds[entry] = row.getId();
+                newLastEdited[entry] = getLastEditedMillis(row);
+                newFiles[entry] = row.getFileAsString();
+                if (row.isVideo()) {
+                    newVideos.set(entry);
+                }
+                newBasePaths.computeIfAbsent(row.getBasePathHash(), hash -> new BitSet()).set(entry);
+                addedEntries[addedIndex++] = entry++;
+            }
+            if (oldEntry == ids.length) {
+                break;
+            }
+            if (removedIds.contains(ids[oldEntry])) {
+                keptEntries[oldEntry] = -1;
+                continue;
+            }
+            newIds[entry] = ids[oldEntry];
+            newLastEdited[entry] = lastEdited[oldEntry];
+            newFiles[entry] = files[oldEntry];
+            keptEntries[oldEntry] = entry++;
+        }
+        for (int oldEntry = videos.nextSetBit(0); oldEntry >= 0; oldEntry = videos.nextSetBit(oldEntry + 1)) {
+            if (keptEntries[oldEntry] != -1) {
+                newVideos.set(keptEntries[oldEntry]);
+            }
+        }
+        for (Map.Entry<Long, BitSet> basePath : basePaths.entrySet()) {
+            final BitSet entries = basePath.getValue();
+            for (int oldEntry = entries.nextSetBit(0); oldEntry >= 0; oldEntry = entries.nextSetBit(oldEntry + 1)) {
+                if (keptEntries[oldEntry] != -1) {
+                    newBasePaths.computeIfAbsent(basePath.getKey(), hash -> new BitSet()).set(keptEntries[oldEntry]);
+                }
+            }
+        }
+
+        // merges the kept entries in their name order with the added entries, sorted by name
+        final Integer[] addedByName = IntStream.of(addedEntries).boxed()
+                .sorted(Comparator.<Integer, String>comparing(i -> newFiles[i]).thenComparingLong(i -> newLastEdited[i]))
+                .toArray(Integer[]::new);
+        final int[] newNameOrder = new int[size];
+        int position = 0;
+        int addedPosition = 0;
+        for (int oldEntry : nameOrder) {
+            final int keptEntry = keptEntries[oldEntry];
+            if (keptEntry == -1) {
+                continue;
+            }
+            while (addedPosition < addedByName.length && compareByName(newFiles, newLastEdited, addedByName[addedPosition], keptEntry) < 0) {
+                newNameOrder[position++] = addedByName[addedPosition++];
+            }
+            newNameOrder[position++] = keptEntry;
+        }
+        while (addedPosition < addedByName.length) {
+            newNameOrder[position++] = addedByName[addedPosition++];
+        }
+
+        return new MediaIndex(newIds, newLastEdited, newFiles, newNameOrder, newVideos, newBasePaths);
+    }
+
+    private static long getLastEditedMillis(MediaRow row) {
+        return row.getLastEdited() == null ? 0 : row.getLastEdited().getTime();
+    }
+
+    private static int compareByDate(MediaRow row, long lastEdited, String file) {
+        final int byDate = Long.compare(getLastEditedMillis(row), lastEdited);
+        return byDate != 0 ? byDate : row.getFileAsString().compareTo(file);
+    }
+
+    private static int compareByName(String[] files, long[] lastEdited, int entry, int otherEntry) {
+        final int byName = files[entry].compareTo(files[otherEntry]);
+        return byName != 0 ? byName : Long.compare(lastEdited[entry], lastEdited[otherEntry]);
+    }
+
+    /**
+     * @return the entry indices that match the filters, in ascending order of the requested sort order.
+     */
+    private int[] getView(String orderBy, boolean includeVideos, Collection<Long> disabledBasePaths) {
+        final boolean byName = "name".equals(orderBy);
+        final SortedSet<Long> disabled = new TreeSet<>(disabledBasePaths);
+        final String key = (byName ? "name" : "date") + "/" + includeVideos + "/" + disabled;
+
+        return views.computeIfAbsent(key, k -> {
+            final BitSet excluded = new BitSet(ids.length);
+            if (!includeVideos) {
+                excluded.or(videos);
+            }
+            for (Long basePath : disabled) {
+                final BitSet entries = basePaths.get(basePath);
+                if (entries != null) {
+                    excluded.or(entries);
+                }
+            }
+
+            final int[] order = byName ? nameOrder : dateOrder;
+            if (excluded.isEmpty()) {
+                return order;
+            }
+
+            final int[] view = new int[ids.length - excluded.cardinality()];
+            int viewIndex = 0;
+            for (int entry : order) {
+                if (!excluded.get(entry)) {
+                    view[viewIndex++] = entry;
+                }
+            }
+            return view;
+        });
+    }
+
+    private static int entryAt(int[] view, int position, boolean asc) {
+        return asc ? view[position] : view[view.length - 1 - position];
+    }
+
+    public List<Long> getIds(int offset, int limit, String orderBy, boolean asc, boolean includeVideos, Collection<Long> disabledBasePaths) {
+        final int[] view = getView(orderBy, includeVideos, disabledBasePaths);
+        final int end = Math.min(view.length, offset + limit);
+
+        final List<Long> pageIds = new ArrayList<>(Math.max(0, end - offset));
+        for (int position = Math.max(0, offset); position < end; position++) {
+            pageIds.add(ids[entryAt(view, position, asc)]);
+        }
+        return pageIds;
+    }
+
+    public int getCount(boolean includeVideos, Collection<Long> disabledBasePaths) {
+        return getView("date", includeVideos, disabledBasePaths).length;
+    }
+
+    /**
+     * @return the first entry of every page of the given size.
+     */
+    public List<MediaRow> getPageStarts(int pageSize, String orderBy, boolean asc, boolean includeVideos, Collection<Long> disabledBasePaths) {
+        final int[] view = getView(orderBy, includeVideos, disabledBasePaths);
+
+        final List<MediaRow> pageStarts = new ArrayList<>(view.length / pageSize + 1);
+        for (int position = 0; position < view.length; position += pageSize) {
+            final int entry = entryAt(view, position, asc);
+
+            final MediaRow row = new MediaRow();
+            row.setId(ids[entry]);
+            row.setFile(files[entry]);
+            row.setLastEdited(new Timestamp(lastEdited[entry]));
+            pageStarts.add(row);
+        }
+        return pageStarts;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+}
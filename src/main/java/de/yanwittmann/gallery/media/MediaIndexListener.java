@@ -0,0 +1,13 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.media.db.MediaRow;
+
+/**
+ * Notified by the {@link MediaService} about media entries that were added or changed during indexing.
+ * Called from the indexing threads, so implementations must be thread-safe and should return quickly.
+ */
+@FunctionalInterface
+public interface MediaIndexListener {
+
+    void mediaIndexed(MediaRow mediaRow);
+}
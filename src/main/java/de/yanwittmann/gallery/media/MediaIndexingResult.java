@@ -0,0 +1,84 @@
+package de.yanwittmann.gallery.media;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts of the changes that were applied to the media table while re-indexing a media directory.
+ */
+public class MediaIndexingResult {
+
+    private final AtomicInteger inserted = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean complete = true;
+
+    public void addInserted(int count) {
+        inserted.addAndGet(count);
+    }
+
+    public void addUpdated(int count) {
+        updated.addAndGet(count);
+    }
+
+    public void incrementDeleted() {
+        deleted.incrementAndGet();
+    }
+
+    public void incrementUnchanged() {
+        unchanged.incrementAndGet();
+    }
+
+    public void addFailed(int count) {
+        failed.addAndGet(count);
+    }
+
+    /**
+     * Marks the directory as not walked completely, in which case media that were not found have not been removed.
+     */
+    public void markIncomplete() {
+        complete = false;
+    }
+
+    public int getInserted() {
+        return inserted.get();
+    }
+
+    public int getUpdated() {
+        return updated.get();
+    }
+
+    public int getDeleted() {
+        return deleted.get();
+    }
+
+    public int getUnchanged() {
+        return unchanged.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("inserted", getInserted())
+                .put("updated", getUpdated())
+                .put("deleted", getDeleted())
+                .put("unchanged", getUnchanged())
+                .put("failed", getFailed())
+                .put("complete", isComplete());
+    }
+
+    @Override
+    public String toString() {
+        return getInserted() + " inserted, " + getUpdated() + " updated, " + getDeleted() + " deleted, " + getUnchanged() + " unchanged, " + getFailed() + " failed" + (complete ? "" : ", incomplete");
+    }
+}
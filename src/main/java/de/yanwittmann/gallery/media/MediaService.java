@@ -1,39 +1,139 @@
 package de.yanwittmann.gallery.media;
 
 import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.dao.JdbcBatchInserter;
+import de.yanwittmann.gallery.db.dao.JdbcTable;
 import de.yanwittmann.gallery.media.config.ConfigField;
 import de.yanwittmann.gallery.media.config.MediaServiceConfiguration;
 import de.yanwittmann.gallery.media.db.MediaRow;
 import de.yanwittmann.gallery.media.db.MediaTable;
+import de.yanwittmann.gallery.util.ContentFingerprint;
 import de.yanwittmann.gallery.util.FileWalkerUtils;
+import de.yanwittmann.gallery.util.ImageUtil;
+import de.yanwittmann.gallery.util.ParallelFileWalker;
+import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MediaService {
 
     public static final Logger LOG = LoggerFactory.getLogger(MediaService.class);
 
     private final int PAGINATION_ENTRIES_PER_PAGE = 60;
+    private final int INDEXING_QUEUE_CAPACITY = 10000;
+    private final int INDEXING_BATCH_SIZE = 1000;
+    /**
+     * Stays well below the limit of bound parameters per statement of older SQLite versions (999).
+     */
+    private final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] SUPPORTED_EXTENSIONS = Stream.concat(MediaRow.IMAGE_EXTENSIONS.stream(), MediaRow.VIDEO_EXTENSIONS.stream())
+            .toArray(String[]::new);
 
     private final MediaServiceConfiguration configuration;
     private final MediaTable mediaTable;
+    private final MediaIndexListener indexListener;
+
+    private final Set<ParallelFileWalker> activeWalkers = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<MediaRow>> summaryCache = new ConcurrentHashMap<>();
+    private final AtomicLong indexGeneration = new AtomicLong();
+    // replacing the index is serialized, so that changes are not applied to an index that is being replaced
+    private final Object mediaIndexLock = new Object();
+    private volatile MediaIndex mediaIndex = null;
+    private volatile MediaDirectoryWatcher directoryWatcher = null;
 
     public MediaService() throws IOException {
-        this.configuration = MediaServiceConfiguration.constructDefaultInstance();
+        this(mediaRow -> {
+        });
+    }
+
+    /**
+     * @param indexListener notified about every media entry that is added or changed whilst indexing, starting with
+     *                      the indexing on startup.
+     */
+    public MediaService(MediaIndexListener indexListener) throws IOException {
+        this(MediaServiceConfiguration.constructDefaultInstance(), indexListener);
+    }
+
+    MediaService(MediaServiceConfiguration configuration, MediaIndexListener indexListener) throws IOException {
+        this.indexListener = indexListener;
+        this.configuration = configuration;
         this.mediaTable = new MediaTable();
+        this.mediaTable.createSchema();
 
         if (configuration.get(ConfigField.INDEX_ON_STARTUP).equals(true)) {
             rescanAllMedia();
         }
+
+        if (configuration.get(ConfigField.IN_MEMORY_INDEX).equals(true) && mediaIndex == null) {
+            rebuildMediaIndex();
+        }
+    }
+
+    /**
+     * Keeps the media table up to date with the enabled media directories using the given watcher, and with the media
+     * directories that are added later on.
+     */
+    public void startWatching(MediaDirectoryWatcher watcher) {
+        this.directoryWatcher = watcher;
+        for (String mediaDirectory : configuration.getStringList(ConfigField.IMAGE_DIRECTORIES)) {
+            watcher.watch(new File(mediaDirectory));
+        }
+    }
+
+    /**
+     * @return the ids that have been changed when the ids were migrated to the current id scheme, mapped from the old to
+     * the new id, until {@link #completeIdMigration()} is called.
+     */
+    public Map<Long, Long> getMigratedIds() {
+        try {
+            return mediaTable.getIdMigration();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load migrated media ids: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forgets the migrated ids once everything that refers to media by their old ids has been updated.
+     */
+    public void completeIdMigration() {
+        try {
+            mediaTable.clearIdMigration();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to remove migrated media ids: " + e.getMessage(), e);
+        }
+    }
+
+    public MediaDirectoryWatcher getDirectoryWatcher() {
+        return directoryWatcher;
     }
 
     public void rescanAllMedia() {
@@ -52,56 +152,333 @@ public class MediaService {
         }
     }
 
-    public void rescanMedia(File mediaDirectory) {
+    public MediaIndexingResult rescanMedia(File mediaDirectory) {
         LOG.info("Re-Indexing media directory: {}", mediaDirectory);
 
-        deleteMediaWhereBasePath(mediaDirectory);
+        final MediaIndexingResult result = new MediaIndexingResult();
 
         if (!mediaDirectory.exists()) {
             LOG.warn("Media directory does not exist: {}", mediaDirectory);
-            return;
+            deleteMediaWhereBasePath(mediaDirectory);
+            return result;
         } else if (!mediaDirectory.isDirectory()) {
             LOG.warn("Media directory is not a directory: {}", mediaDirectory);
-            return;
+            deleteMediaWhereBasePath(mediaDirectory);
+            return result;
         }
 
         final long basePathHash = hash(mediaDirectory.getAbsolutePath());
 
-        FileWalkerUtils.walkFileTreeMultiThreaded(
-                Path.of(mediaDirectory.toURI()),
-                FileWalkerUtils.extensionFilter(
-                        "jpg", "jpeg", "png", "gif", "bmp", "webp", "svg",
-                        "mov", "mp4"
-                ),
+        // the media that are currently indexed for this directory by id.
+        // every file that is found during the walk is removed from this map, so only the missing files remain afterwards.
+        final Map<Long, IndexedMedia> previouslyIndexed;
+        if (isIncrementalIndexing()) {
+            previouslyIndexed = getIndexedWhereBasePath(basePathHash);
+        } else {
+            deleteMediaWhereBasePath(mediaDirectory);
+            previouslyIndexed = new ConcurrentHashMap<>();
+        }
+        final MediaIdResolver idResolver = new MediaIdResolver(this, mediaTable, basePathHash, getAllIds());
+
+        // new and changed rows are handed from the walker threads to writers that write them in batches
+        final JdbcBatchInserter<MediaRow> inserter = mediaTable.batchInserter(INDEXING_QUEUE_CAPACITY, INDEXING_BATCH_SIZE, this::notifyIndexed);
+        final JdbcBatchInserter<MediaRow> updater = mediaTable.batchUpserter(INDEXING_QUEUE_CAPACITY, INDEXING_BATCH_SIZE, this::notifyIndexed);
+        final ParallelFileWalker walker = new ParallelFileWalker(
+                FileWalkerUtils.extensionFilter(SUPPORTED_EXTENSIONS),
                 path -> true,
-                file -> processFile(basePathHash, file),
-                Math.min(8, Runtime.getRuntime().availableProcessors())
+                (file, attributes) -> processFile(basePathHash, file, attributes, previouslyIndexed, idResolver, inserter, updater, result),
+                ParallelFileWalker.DEFAULT_PARALLELISM
         );
+        activeWalkers.add(walker);
+        try {
+            walker.walk(Path.of(mediaDirectory.toURI()));
+        } catch (CancellationException e) {
+            LOG.warn("Indexing of media directory has been cancelled: {}", mediaDirectory);
+            result.markIncomplete();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to walk media directory, media that were not found are kept: {}", mediaDirectory, e);
+            result.markIncomplete();
+        } finally {
+            activeWalkers.remove(walker);
+            closeWriters(inserter, updater, mediaDirectory, result);
+        }
+        LOG.info("Walked media directory: {} ({})", mediaDirectory, walker);
+
+        // files that have not been reached by an incomplete walk must not be taken for deleted
+        final Set<Long> missingIds = result.isComplete() ? previouslyIndexed.keySet() : Collections.emptySet();
+        deleteMediaIds(missingIds, result);
+
+        invalidateCaches();
+        rebuildMediaIndex();
 
-        LOG.info("Finished indexing media directory: {}", mediaDirectory);
+        LOG.info("Finished indexing media directory: {} ({})", mediaDirectory, result);
+
+        return result;
     }
 
-    private void deleteMediaWhereBasePath(File basePath) {
+    /**
+     * Applies changes of single files and directories below a media directory to the media table, without walking the
+     * rest of the media directory. New and changed files are written, and media are removed for every path that does
+     * not exist anymore, including the media below it if it was a directory.
+     *
+     * @param mediaDirectory the media directory the paths belong to.
+     * @param changedPaths   files or directories that have been created, modified or deleted.
+     */
+    public MediaIndexingResult applyChanges(File mediaDirectory, Collection<Path> changedPaths) {
+        final MediaIndexingResult result = new MediaIndexingResult();
+        final long basePathHash = hash(mediaDirectory.getAbsolutePath());
+        final Predicate<Path> fileFilter = FileWalkerUtils.extensionFilter(SUPPORTED_EXTENSIONS);
+
+        final Set<Long> deletedIds = new HashSet<>();
+        // a file is contained in the changes both by itself and by its new parent directory, but must only be inserted
+        // once. maps the paths to their ids, or to -1 if they are indexed as part of another media directory
+        final Map<String, Long> processedIds = new ConcurrentHashMap<>();
+        // only a few ids are resolved, so they are looked up in the media table instead of loading all ids
+        final MediaIdResolver idResolver = new MediaIdResolver(this, mediaTable, basePathHash, null);
+        // the rows that have been committed are applied to the in-memory index instead of rebuilding it
+        final Queue<MediaRow> writtenRows = new ConcurrentLinkedQueue<>();
+        final Consumer<MediaRow> written = mediaRow -> {
+            writtenRows.add(mediaRow);
+            notifyIndexed(mediaRow);
+        };
+        final JdbcBatchInserter<MediaRow> inserter = mediaTable.batchInserter(INDEXING_QUEUE_CAPACITY, INDEXING_BATCH_SIZE, written);
+        final JdbcBatchInserter<MediaRow> updater = mediaTable.batchUpserter(INDEXING_QUEUE_CAPACITY, INDEXING_BATCH_SIZE, written);
+        try {
+            for (Path path : changedPaths) {
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // the path does not exist anymore, it may have been a file or a directory
+                    deletedIds.addAll(getIndexedAt(path).keySet());
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    // media below the directory that are not found by walking it have been removed
+                    final Map<Long, IndexedMedia> previouslyIndexed = getIndexedAt(path);
+                    final ParallelFileWalker walker = new ParallelFileWalker(fileFilter, dir -> true, (file, fileAttributes) -> {
+                        final Long processedId = processedIds.get(file.toAbsolutePath().toString());
+                        if (processedId == null) {
+                            processedIds.put(file.toAbsolutePath().toString(), processFile(basePathHash, file, fileAttributes, previouslyIndexed, idResolver, inserter, updater, result));
+                        } else {
+                            previouslyIndexed.remove(processedId);
+                        }
+                    }, 1);
+                    try {
+                        walker.walk(path);
+                        deletedIds.addAll(previouslyIndexed.keySet());
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Failed to walk changed directory, it will be indexed with the next scan: {}", path, e);
+                        result.markIncomplete();
+                    }
+                } else if (attributes.isRegularFile() && fileFilter.test(path) && !processedIds.containsKey(path.toAbsolutePath().toString())) {
+                    // the id resolver finds the entry of the file in the media table, if there is one
+                    processedIds.put(path.toAbsolutePath().toString(), processFile(basePathHash, path, attributes, new ConcurrentHashMap<>(), idResolver, inserter, updater, result));
+                }
+            }
+        } finally {
+            closeWriters(inserter, updater, mediaDirectory, result);
+        }
+
+        final boolean deleted = deleteMediaIds(deletedIds, result);
+
+        if (result.getInserted() + result.getUpdated() + result.getDeleted() > 0) {
+            invalidateCaches();
+            updateMediaIndex(writtenRows, deleted ? deletedIds : Collections.emptySet());
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits for the writers of an indexing run to write the remaining rows.
+     */
+    private void closeWriters(JdbcBatchInserter<MediaRow> inserter, JdbcBatchInserter<MediaRow> updater, File mediaDirectory, MediaIndexingResult result) {
+        try {
+            inserter.close();
+        } catch (SQLException e) {
+            LOG.error("Failed to insert media files of directory into database: {}", mediaDirectory, e);
+        }
+        try {
+            updater.close();
+        } catch (SQLException e) {
+            LOG.error("Failed to update media files of directory in database: {}", mediaDirectory, e);
+        }
+        result.addInserted(inserter.getInserted());
+        result.addUpdated(updater.getInserted());
+        result.addFailed(inserter.getFailed() + updater.getFailed());
+    }
+
+    /**
+     * @return the media of the file at the path, or the media below it if it is a directory, by id.
+     */
+    private Map<Long, IndexedMedia> getIndexedAt(Path path) {
+        // all paths below the directory sort between the directory with a trailing separator and the character after it
+        final String file = path.toAbsolutePath().toString();
+        final String prefix = file + File.separator;
+        final String prefixEnd = file + (char) (File.separatorChar + 1);
         try {
-            final List<MediaRow> mediaResults = this.mediaTable.getByPreparedStatement(connection -> {
+            return getIndexed(connection -> {
                 try {
-                    final PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + mediaTable.getTableName() + " WHERE base_path_hash = ?");
-                    statement.setLong(1, hash(basePath.getAbsolutePath()));
+                    final PreparedStatement statement = connection.prepareStatement("SELECT id, file, last_edited, size_bytes, fingerprint FROM " + mediaTable.getTableName() + " WHERE file = ? OR (file >= ? AND file < ?)");
+                    statement.setString(1, file);
+                    statement.setString(2, prefix);
+                    statement.setString(3, prefixEnd);
                     return statement;
                 } catch (SQLException e) {
                     throw new RuntimeException(e);
                 }
             });
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load indexed media entries at [" + path + "]: " + e.getMessage(), e);
+        }
+    }
+
+    private long[] getAllIds() {
+        try {
+            return mediaTable.getAllIds();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load media ids: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the media with a single transaction.
+     *
+     * @return whether the media have been deleted.
+     */
+    private boolean deleteMediaIds(Collection<Long> ids, MediaIndexingResult result) {
+        if (ids.isEmpty()) {
+            return true;
+        }
 
-            for (MediaRow mediaRow : mediaResults) {
-                this.mediaTable.delete(mediaRow);
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + mediaTable.getTableName() + " WHERE id = ?")) {
+                for (Long id : ids) {
+                    statement.setLong(1, id);
+                    statement.addBatch();
+                }
+                for (int count : statement.executeBatch()) {
+                    if (count > 0) {
+                        result.incrementDeleted();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
+        } catch (SQLException e) {
+            LOG.error("Failed to delete {} missing media files from database", ids.size(), e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops watching the media directories and cancels the directory walks that are running, so that the media table
+     * is not written to anymore once this returns.
+     */
+    public void close() {
+        final MediaDirectoryWatcher watcher = directoryWatcher;
+        directoryWatcher = null;
+        cancelIndexing();
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Stops all directory walks that are currently running. The media that have been found until then are kept.
+     */
+    public void cancelIndexing() {
+        for (ParallelFileWalker walker : activeWalkers) {
+            walker.cancel();
+        }
+    }
+
+    /**
+     * @return the progress of the directory walks that are currently running.
+     */
+    public JSONArray getIndexingProgress() {
+        final JSONArray progress = new JSONArray();
+        for (ParallelFileWalker walker : activeWalkers) {
+            progress.put(walker.toJson());
+        }
+        return progress;
+    }
+
+    private boolean isIncrementalIndexing() {
+        return !configuration.get(ConfigField.INCREMENTAL_INDEXING).equals(false);
+    }
+
+    private Map<Long, IndexedMedia> getIndexedWhereBasePath(long basePathHash) {
+        try {
+            return getIndexed(connection -> {
+                try {
+                    final PreparedStatement statement = connection.prepareStatement("SELECT id, file, last_edited, size_bytes, fingerprint FROM " + mediaTable.getTableName() + " WHERE base_path_hash = ?");
+                    statement.setLong(1, basePathHash);
+                    return statement;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load indexed media entries for base path hash [" + basePathHash + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the id, file, last edited time, size and fingerprint selected by the query, without creating media rows.
+     */
+    private Map<Long, IndexedMedia> getIndexed(Function<Connection, PreparedStatement> handler) throws SQLException {
+        final boolean fingerprints = isContentFingerprinting();
+        final Map<Long, IndexedMedia> indexed = new ConcurrentHashMap<>();
+        mediaTable.forEachResult(handler, JdbcTable.DEFAULT_FETCH_SIZE, resultSet -> {
+            final boolean incomplete = resultSet.getObject("size_bytes") == null || (fingerprints && resultSet.getObject("fingerprint") == null);
+            indexed.put(resultSet.getLong("id"), toIndexedMedia(resultSet.getString("file"), incomplete ? -1 : MediaTable.getLastEditedMillis(resultSet, "last_edited")));
+        });
+        return indexed;
+    }
+
+    /**
+     * Rows that lack the file attributes, or the fingerprint if fingerprinting is enabled, get a last edited time of
+     * -1, so that they are written again.
+     */
+    IndexedMedia toIndexedMedia(MediaRow mediaRow) {
+        final boolean incomplete = mediaRow.getLastEdited() == null || mediaRow.getSizeBytes() == null || (isContentFingerprinting() && mediaRow.getFingerprint() == null);
+        return toIndexedMedia(mediaRow.getFileAsString(), incomplete ? -1 : mediaRow.getLastEdited().getTime());
+    }
+
+    private static IndexedMedia toIndexedMedia(String file, long lastEdited) {
+        return new IndexedMedia(lastEdited, MediaRow.calculatePathCheck(file));
+    }
+
+    private boolean isContentFingerprinting() {
+        return !configuration.get(ConfigField.CONTENT_FINGERPRINTS).equals(false);
+    }
+
+    private void deleteMediaWhereBasePath(File basePath) {
+        try {
+            final int deleted = mediaTable.deleteWhere("base_path_hash = ?", hash(basePath.getAbsolutePath()));
+            LOG.info("Removed {} media entries of base path: {}", deleted, basePath);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to remove all media entries for base path [" + basePath + "]: " + e.getMessage(), e);
+        } finally {
+            invalidateCaches();
+            rebuildMediaIndex();
         }
     }
 
     public void removeMedia(File file) {
+        final MediaDirectoryWatcher watcher = directoryWatcher;
+        if (watcher != null) {
+            watcher.unwatch(file);
+        }
         deleteMediaWhereBasePath(file);
         try {
             final List<String> imageDirectories = configuration.getStringList(ConfigField.IMAGE_DIRECTORIES).stream()
@@ -117,6 +494,10 @@ public class MediaService {
 
     public void addMedia(File file) {
         rescanMedia(file);
+        final MediaDirectoryWatcher watcher = directoryWatcher;
+        if (watcher != null) {
+            watcher.watch(file);
+        }
         try {
             final List<String> imageDirectories = configuration.getStringList(ConfigField.IMAGE_DIRECTORIES).stream()
                     .map(File::new)
@@ -137,6 +518,7 @@ public class MediaService {
                     .collect(Collectors.toList());
             imageDirectories.add(file.getAbsolutePath());
             configuration.set(ConfigField.DISABLED_IMAGE_DIRECTORIES, imageDirectories);
+            invalidateCaches();
         } catch (Exception e) {
             LOG.error("Failed to disable media directory in configuration: {}", file.getParentFile().getAbsolutePath(), e);
         }
@@ -150,34 +532,99 @@ public class MediaService {
                     .collect(Collectors.toList());
             imageDirectories.remove(file.getAbsolutePath());
             configuration.set(ConfigField.DISABLED_IMAGE_DIRECTORIES, imageDirectories);
+            invalidateCaches();
         } catch (Exception e) {
             LOG.error("Failed to enable media directory in configuration: {}", file.getParentFile().getAbsolutePath(), e);
         }
     }
 
-    private void processFile(long basePathHash, Path file) {
+    /**
+     * Writes the file into the media table if it is new or has changed since it was indexed.
+     *
+     * @return the id of the file, or -1 if it is indexed as part of another media directory and has been skipped.
+     */
+    private long processFile(long basePathHash, Path file, BasicFileAttributes attributes, Map<Long, IndexedMedia> previouslyIndexed,
+                             MediaIdResolver idResolver, JdbcBatchInserter<MediaRow> inserter, JdbcBatchInserter<MediaRow> updater,
+                             MediaIndexingResult result) {
         final MediaRow mediaRow = new MediaRow();
 
         mediaRow.setFile(file.toAbsolutePath().toString());
-        mediaRow.setId(calculateHashFromPath(file));
+        try {
+            final Long id = idResolver.resolve(mediaRow.getFileAsString(), previouslyIndexed);
+            if (id == null) {
+                result.incrementUnchanged();
+                return -1;
+            }
+            mediaRow.setId(id);
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to assign an id to media file: " + file, e);
+        }
 
-        final Timestamp lastModifiedTimestamp = new Timestamp(file.toFile().lastModified());
+        final Timestamp lastModifiedTimestamp = new Timestamp(attributes.lastModifiedTime().toMillis());
         mediaRow.setLastEdited(lastModifiedTimestamp);
 
         mediaRow.setBasePathHash(basePathHash);
 
+        final IndexedMedia previous = previouslyIndexed.remove(mediaRow.getId());
+        if (previous != null && previous.getLastEdited() == lastModifiedTimestamp.getTime()) {
+            result.incrementUnchanged();
+            return mediaRow.getId();
+        }
+
+        setFileAttributes(mediaRow, file, attributes);
+
+        // the writers count the rows and notify the index listener once they have been committed
+        if (previous == null) {
+            inserter.add(mediaRow);
+        } else {
+            updater.add(mediaRow);
+        }
+
+        return mediaRow.getId();
+    }
+
+    private void notifyIndexed(MediaRow mediaRow) {
         try {
-            mediaTable.insert(mediaRow);
-        } catch (SQLException e) {
-            LOG.error("Failed to insert media file into database: {}", mediaRow.getId(), e);
-            throw new RuntimeException("Failed to insert media file into database: " + mediaRow.getId(), e);
+            indexListener.mediaIndexed(mediaRow);
+        } catch (Exception e) {
+            LOG.warn("Media index listener failed for media file: {}", mediaRow.getId(), e);
         }
     }
 
-    private long calculateHashFromPath(Path file) {
-        return hash(file.toAbsolutePath().toString());
+    /**
+     * Sets the size, type, extension and content fingerprint of the media and, for images, the dimensions read from
+     * the file header.
+     */
+    private void setFileAttributes(MediaRow mediaRow, Path file, BasicFileAttributes attributes) {
+        final String extension = MediaRow.getExtension(mediaRow.getFileAsString());
+        mediaRow.setExtension(extension);
+        mediaRow.setMediaType(MediaRow.getMediaTypeForExtension(extension));
+        mediaRow.setSizeBytes(attributes.size());
+
+        if (isContentFingerprinting()) {
+            try {
+                mediaRow.setFingerprint(ContentFingerprint.compute(file, attributes.size()));
+            } catch (IOException e) {
+                LOG.debug("Failed to fingerprint media file: {}", file, e);
+            }
+        }
+
+        if (!mediaRow.isVideo()) {
+            try {
+                final Dimension dimensions = ImageUtil.readImageDimensions(file.toFile());
+                if (dimensions != null) {
+                    mediaRow.setWidth(dimensions.width);
+                    mediaRow.setHeight(dimensions.height);
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to read dimensions of media file: {}", file, e);
+            }
+        }
     }
 
+    /**
+     * Identifies media directories, media files are identified by {@link MediaRow#calculateId(String, int)}.
+     */
     public static long hash(String string) {
         // algorithm from https://stackoverflow.com/a/1660613/11769745
         // adapted from String.hashCode()
@@ -190,25 +637,19 @@ public class MediaService {
         return h;
     }
 
-    public List<Long> getMediaIds(int page, String orderBy, boolean asc, boolean includeVideos) throws SQLException {
-        final String primaryOrderBy;
-        final String secondaryOrderBy;
+    private static String[] getOrderColumns(String orderBy) {
         switch (orderBy) {
             case "name":
-                primaryOrderBy = "file";
-                secondaryOrderBy = "last_edited";
-                break;
+                return new String[]{"file", "last_edited"};
             case "date":
             default:
-                primaryOrderBy = "last_edited";
-                secondaryOrderBy = "file";
-                break;
+                return new String[]{"last_edited", "file"};
         }
+    }
 
-        final String effectiveAsc = asc ? "ASC" : "DESC";
-
+    private StringJoiner buildWhereClauses(boolean includeVideos) {
         final String whereClauseForDisabledMedia = buildWhereClauseFromDisabledMedia();
-        final String whereClauseForVideos = includeVideos ? "" : " file NOT LIKE '%.mp4'";
+        final String whereClauseForVideos = includeVideos ? "" : "media_type = '" + MediaRow.MEDIA_TYPE_IMAGE + "'";
 
         final StringJoiner whereClauseJoiner = new StringJoiner(" AND ");
         if (!whereClauseForDisabledMedia.isEmpty()) {
@@ -217,72 +658,189 @@ public class MediaService {
         if (!whereClauseForVideos.isEmpty()) {
             whereClauseJoiner.add(whereClauseForVideos);
         }
+        return whereClauseJoiner;
+    }
 
-        return this.mediaTable.getByPreparedStatement(connection -> {
-                    try {
-                        final PreparedStatement statement = connection.prepareStatement("SELECT id FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : "") + " ORDER BY " + primaryOrderBy + " " + effectiveAsc + ", " + secondaryOrderBy + " " + effectiveAsc + " LIMIT ? OFFSET ?");
-                        statement.setInt(1, PAGINATION_ENTRIES_PER_PAGE);
-                        statement.setInt(2, page * PAGINATION_ENTRIES_PER_PAGE);
-                        return statement;
-                    } catch (SQLException e) {
-                        throw new RuntimeException(e);
+    public List<Long> getMediaIds(int page, String orderBy, boolean asc, boolean includeVideos) throws SQLException {
+        final MediaIndex index = mediaIndex;
+        if (index != null) {
+            return index.getIds(page * PAGINATION_ENTRIES_PER_PAGE, PAGINATION_ENTRIES_PER_PAGE, orderBy, asc, includeVideos, getDisabledMedia());
+        }
+
+        final String[] orderColumns = getOrderColumns(orderBy);
+        final String primaryOrderBy = orderColumns[0];
+        final String secondaryOrderBy = orderColumns[1];
+
+        final String effectiveAsc = asc ? "ASC" : "DESC";
+
+        final StringJoiner whereClauseJoiner = buildWhereClauses(includeVideos);
+
+        final long[] ids = this.mediaTable.getLongs(connection -> {
+            try {
+                final PreparedStatement statement = connection.prepareStatement("SELECT id FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : "") + " ORDER BY " + primaryOrderBy + " " + effectiveAsc + ", " + secondaryOrderBy + " " + effectiveAsc + " LIMIT ? OFFSET ?");
+                statement.setInt(1, PAGINATION_ENTRIES_PER_PAGE);
+                statement.setInt(2, page * PAGINATION_ENTRIES_PER_PAGE);
+                return statement;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return Arrays.stream(ids).boxed().collect(Collectors.toList());
+    }
+
+    /**
+     * Seek pagination: returns the page that directly follows the given cursor in the requested order.
+     * Unlike {@link #getMediaIds(int, String, boolean, boolean)}, the cost of this query does not grow with the position
+     * in the listing, as the start of the page is found via the sort indexes.
+     *
+     * @param cursor the position after which the page starts, or null for the first page.
+     * @return the ids of the page and the cursor of the page after it.
+     */
+    public MediaCursorPage getMediaIdsAfter(MediaCursor cursor, String orderBy, boolean asc, boolean includeVideos) throws SQLException {
+        final String[] orderColumns = getOrderColumns(orderBy);
+        final String primaryOrderBy = orderColumns[0];
+        final String secondaryOrderBy = orderColumns[1];
+        final boolean orderByFile = primaryOrderBy.equals("file");
+
+        final String effectiveAsc = asc ? "ASC" : "DESC";
+
+        final StringJoiner whereClauseJoiner = buildWhereClauses(includeVideos);
+        if (cursor != null) {
+            whereClauseJoiner.add("(" + primaryOrderBy + ", " + secondaryOrderBy + ", id) " + (asc ? ">" : "<") + " (?, ?, ?)");
+        }
+
+        final List<MediaRow> rows = this.mediaTable.getByPreparedStatement(connection -> {
+            try {
+                final PreparedStatement statement = connection.prepareStatement("SELECT id, file, last_edited FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : "") + " ORDER BY " + primaryOrderBy + " " + effectiveAsc + ", " + secondaryOrderBy + " " + effectiveAsc + ", id " + effectiveAsc + " LIMIT ?");
+                int parameterIndex = 1;
+                if (cursor != null) {
+                    if (orderByFile) {
+                        statement.setString(parameterIndex++, cursor.getFile());
+                        statement.setLong(parameterIndex++, cursor.getLastEdited());
+                    } else {
+                        statement.setLong(parameterIndex++, cursor.getLastEdited());
+                        statement.setString(parameterIndex++, cursor.getFile());
                     }
-                }).stream()
+                    statement.setLong(parameterIndex++, cursor.getId());
+                }
+                statement.setInt(parameterIndex, PAGINATION_ENTRIES_PER_PAGE);
+                return statement;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        final List<Long> ids = rows.stream()
                 .map(MediaRow::getId)
                 .collect(Collectors.toList());
+
+        final MediaCursor next;
+        if (rows.size() < PAGINATION_ENTRIES_PER_PAGE) {
+            next = null;
+        } else {
+            final MediaRow last = rows.get(rows.size() - 1);
+            next = new MediaCursor(last.getLastEdited().getTime(), last.getFileAsString(), last.getId());
+        }
+
+        return new MediaCursorPage(ids, next);
     }
 
+    /**
+     * Returns the first media entry of every page in the given order, computed in a single query that numbers the rows
+     * with a window function. Results are cached until the index or the enabled media directories change.
+     * If the in-memory media index is enabled, the summary is read from there instead.
+     */
     public List<MediaRow> getMediaForSummary(String orderBy, boolean asc, boolean includeVideos) throws SQLException {
-        final String primaryOrderBy;
-        final String secondaryOrderBy;
-        switch (orderBy) {
-            case "name":
-                primaryOrderBy = "file";
-                secondaryOrderBy = "last_edited";
-                break;
-            case "date":
-            default:
-                primaryOrderBy = "last_edited";
-                secondaryOrderBy = "file";
-                break;
+        final MediaIndex index = mediaIndex;
+        if (index != null) {
+            return index.getPageStarts(PAGINATION_ENTRIES_PER_PAGE, orderBy, asc, includeVideos, getDisabledMedia());
+        }
+
+        final String[] orderColumns = getOrderColumns(orderBy);
+        final String primaryOrderBy = orderColumns[0];
+        final String secondaryOrderBy = orderColumns[1];
+
+        final String cacheKey = primaryOrderBy + "/" + asc + "/" + includeVideos;
+        final long generation = indexGeneration.get();
+        final List<MediaRow> cached = summaryCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
         }
 
         final String effectiveAsc = asc ? "ASC" : "DESC";
 
-        final String whereClauseForDisabledMedia = buildWhereClauseFromDisabledMedia();
-        final String whereClauseForVideos = includeVideos ? "" : " file NOT LIKE '%.mp4'";
+        final StringJoiner whereClauseJoiner = buildWhereClauses(includeVideos);
 
-        final StringJoiner whereClauseJoiner = new StringJoiner(" AND ");
-        if (!whereClauseForDisabledMedia.isEmpty()) {
-            whereClauseJoiner.add(whereClauseForDisabledMedia);
-        }
-        if (!whereClauseForVideos.isEmpty()) {
-            whereClauseJoiner.add(whereClauseForVideos);
+        final List<MediaRow> rows = this.mediaTable.getByPreparedStatement(connection -> {
+            try {
+                final PreparedStatement statement = connection.prepareStatement("SELECT * FROM (SELECT *, ROW_NUMBER() OVER (ORDER BY " + primaryOrderBy + " " + effectiveAsc + ", " + secondaryOrderBy + " " + effectiveAsc + ") AS row_number FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : "") + ") WHERE row_number % ? = 1 ORDER BY row_number");
+                statement.setInt(1, PAGINATION_ENTRIES_PER_PAGE);
+                return statement;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        final List<MediaRow> summary = Collections.unmodifiableList(rows);
+        // only cache the summary if the index did not change whilst it was computed
+        synchronized (summaryCache) {
+            if (generation == indexGeneration.get()) {
+                summaryCache.put(cacheKey, summary);
+            }
         }
 
-        final List<MediaRow> rows = new ArrayList<>();
+        return summary;
+    }
 
-        for (int page = 0; page < getPageCount(includeVideos); page++) {
-            int finalPage = page;
+    /**
+     * Rebuilds the in-memory media index from the media table if it is enabled.
+     * The previous index keeps answering queries until the new one is complete.
+     */
+    private void rebuildMediaIndex() {
+        synchronized (mediaIndexLock) {
+            if (!configuration.get(ConfigField.IN_MEMORY_INDEX).equals(true)) {
+                mediaIndex = null;
+                return;
+            }
 
-            final List<MediaRow> mediaRows = this.mediaTable.getByPreparedStatement(connection -> {
-                try {
-                    final PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : "") + " ORDER BY " + primaryOrderBy + " " + effectiveAsc + ", " + secondaryOrderBy + " " + effectiveAsc + " LIMIT 1 OFFSET ?");
-                    statement.setInt(1, finalPage * PAGINATION_ENTRIES_PER_PAGE);
-                    return statement;
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            try {
+                final long start = System.currentTimeMillis();
+                final MediaIndex index = MediaIndex.build(mediaTable);
+                mediaIndex = index;
+                LOG.info("Built in-memory media index with {} entries in {}ms", index.size(), System.currentTimeMillis() - start);
+            } catch (SQLException e) {
+                LOG.error("Failed to build in-memory media index, falling back to database queries", e);
+                mediaIndex = null;
+            }
+        }
+    }
 
-            if (!mediaRows.isEmpty()) {
-                rows.add(mediaRows.get(0));
-            } else {
-                rows.add(null);
+    /**
+     * Applies media that have been written or deleted to the in-memory media index, instead of reading the whole media
+     * table again. Changes that have been committed whilst the index was rebuilt are applied again, which has no
+     * further effect if the rebuilt index already contains them.
+     */
+    private void updateMediaIndex(Collection<MediaRow> writtenRows, Collection<Long> deletedIds) {
+        synchronized (mediaIndexLock) {
+            final MediaIndex index = mediaIndex;
+            if (index == null) {
+                // the index is either disabled or could not be built before
+                rebuildMediaIndex();
+                return;
             }
+            mediaIndex = index.withChanges(writtenRows, deletedIds);
         }
+    }
 
-        return rows;
+    /**
+     * Drops all results that are cached for the current state of the index.
+     * Must be called whenever media entries are written or the enabled media directories change.
+     */
+    private void invalidateCaches() {
+        synchronized (summaryCache) {
+            indexGeneration.incrementAndGet();
+            summaryCache.clear();
+        }
     }
 
     private List<Long> getDisabledMedia() {
@@ -304,18 +862,14 @@ public class MediaService {
     }
 
     public int getTotalCount(boolean includeVideos) {
-        try (final Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
+        final MediaIndex index = mediaIndex;
+        if (index != null) {
+            return index.getCount(includeVideos, getDisabledMedia());
+        }
 
-            final String whereClauseForDisabledMedia = buildWhereClauseFromDisabledMedia();
-            final String whereClauseForVideos = includeVideos ? "" : " file NOT LIKE '%.mp4'";
+        try (final Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
 
-            final StringJoiner whereClauseJoiner = new StringJoiner(" AND ");
-            if (!whereClauseForDisabledMedia.isEmpty()) {
-                whereClauseJoiner.add(whereClauseForDisabledMedia);
-            }
-            if (!whereClauseForVideos.isEmpty()) {
-                whereClauseJoiner.add(whereClauseForVideos);
-            }
+            final StringJoiner whereClauseJoiner = buildWhereClauses(includeVideos);
 
             final PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM " + mediaTable.getTableName() + (whereClauseJoiner.length() > 0 ? " WHERE " + whereClauseJoiner : ""));
             final ResultSet resultSet = statement.executeQuery();
@@ -352,6 +906,71 @@ public class MediaService {
         }
     }
 
+    /**
+     * Loads several media rows with as few queries as possible.
+     *
+     * @param ids the ids of the media to load.
+     * @return the media in the order of the given ids, ids that do not exist are skipped.
+     */
+    public List<MediaRow> getMedia(List<Long> ids) throws SQLException {
+        final Map<Long, MediaRow> byId = new HashMap<>(ids.size());
+
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            final List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY));
+            final String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+
+            final List<MediaRow> rows = this.mediaTable.getByPreparedStatement(connection -> {
+                try {
+                    final PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + mediaTable.getTableName() + " WHERE id IN (" + placeholders + ")");
+                    for (int i = 0; i < chunk.size(); i++) {
+                        statement.setLong(i + 1, chunk.get(i));
+                    }
+                    return statement;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (MediaRow row : rows) {
+                byId.put(row.getId(), row);
+            }
+        }
+
+        final List<MediaRow> media = new ArrayList<>(byId.size());
+        for (Long id : ids) {
+            final MediaRow row = byId.get(id);
+            if (row != null) {
+                media.add(row);
+            }
+        }
+        return media;
+    }
+
+    /**
+     * Finds media with the same content fingerprint, which are copies of the same file.
+     *
+     * @return groups of at least two media with the same content, ordered by their size, largest first.
+     */
+    public List<List<MediaRow>> getDuplicates() throws SQLException {
+        final List<List<MediaRow>> groups = new ArrayList<>();
+        try (Stream<MediaRow> rows = this.mediaTable.streamByPreparedStatement(connection -> {
+            try {
+                return connection.prepareStatement("SELECT * FROM " + mediaTable.getTableName() + " WHERE fingerprint IN (SELECT fingerprint FROM " + mediaTable.getTableName() + " WHERE fingerprint IS NOT NULL GROUP BY fingerprint HAVING COUNT(*) > 1) ORDER BY size_bytes DESC, fingerprint, file");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, JdbcTable.DEFAULT_FETCH_SIZE)) {
+            rows.forEachOrdered(row -> {
+                final List<MediaRow> group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+                if (group == null || !group.get(0).getFingerprint().equals(row.getFingerprint())) {
+                    groups.add(new ArrayList<>(Collections.singletonList(row)));
+                } else {
+                    group.add(row);
+                }
+            });
+        }
+        return groups;
+    }
+
     public MediaServiceConfiguration getSettings() {
         return configuration;
     }
@@ -6,6 +6,10 @@ public enum ConfigField {
     IMAGE_DIRECTORIES("image_directories", new ArrayList<>(), ConfigConverters.LIST_TO_CONFIG_CONVERTER, ConfigConverters.STRING_LIST_FROM_CONFIG_CONVERTER),
     DISABLED_IMAGE_DIRECTORIES("disabled_image_directories", new ArrayList<>(), ConfigConverters.LIST_TO_CONFIG_CONVERTER, ConfigConverters.STRING_LIST_FROM_CONFIG_CONVERTER),
     INDEX_ON_STARTUP("index_on_startup", true, ConfigConverters.IDENTITY_TO_CONFIG_CONVERTER, ConfigConverters.IDENTITY_FROM_CONFIG_CONVERTER),
+    INCREMENTAL_INDEXING("incremental_indexing", true, ConfigConverters.IDENTITY_TO_CONFIG_CONVERTER, ConfigConverters.IDENTITY_FROM_CONFIG_CONVERTER),
+    IN_MEMORY_INDEX("in_memory_index", false, ConfigConverters.IDENTITY_TO_CONFIG_CONVERTER, ConfigConverters.IDENTITY_FROM_CONFIG_CONVERTER),
+    WATCH_DIRECTORIES("watch_directories", true, ConfigConverters.IDENTITY_TO_CONFIG_CONVERTER, ConfigConverters.IDENTITY_FROM_CONFIG_CONVERTER),
+    CONTENT_FINGERPRINTS("content_fingerprints", true, ConfigConverters.IDENTITY_TO_CONFIG_CONVERTER, ConfigConverters.IDENTITY_FROM_CONFIG_CONVERTER),
     ;
 
     private final String key;
@@ -4,17 +4,27 @@ import de.yanwittmann.gallery.db.dao.Column;
 import de.yanwittmann.gallery.db.dao.DatabaseToFieldMapper;
 import de.yanwittmann.gallery.db.dao.JdbcRow;
 import de.yanwittmann.gallery.db.dao.PrimaryKey;
+import de.yanwittmann.gallery.util.XxHash64;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 public class MediaRow extends JdbcRow {
 
+    public static final String MEDIA_TYPE_IMAGE = "image";
+    public static final String MEDIA_TYPE_VIDEO = "video";
+
+    public static final List<String> IMAGE_EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "gif", "bmp", "webp", "svg");
+    public static final List<String> VIDEO_EXTENSIONS = Arrays.asList("mov", "mp4");
+
     @PrimaryKey
-    @Column(name = "id", notNull = true)
+    @Column(name = "id", notNull = true, resultSetToField = DatabaseToFieldMapper.LONG)
     protected Long id;
 
     @Column(name = "file", notNull = true)
@@ -23,9 +33,27 @@ public class MediaRow extends JdbcRow {
     @Column(name = "last_edited", notNull = true, resultSetToField = DatabaseToFieldMapper.TIMESTAMP)
     protected Timestamp last_edited;
 
-    @Column(name = "base_path_hash", notNull = true)
+    @Column(name = "base_path_hash", notNull = true, resultSetToField = DatabaseToFieldMapper.LONG)
     protected Long base_path_hash;
 
+    @Column(name = "size_bytes", resultSetToField = DatabaseToFieldMapper.LONG)
+    protected Long size_bytes;
+
+    @Column(name = "width", resultSetToField = DatabaseToFieldMapper.INTEGER)
+    protected Integer width;
+
+    @Column(name = "height", resultSetToField = DatabaseToFieldMapper.INTEGER)
+    protected Integer height;
+
+    @Column(name = "media_type")
+    protected String media_type;
+
+    @Column(name = "extension")
+    protected String extension;
+
+    @Column(name = "fingerprint", resultSetToField = DatabaseToFieldMapper.LONG)
+    protected Long fingerprint;
+
     public MediaRow(ResultSet resultSet) {
         super(resultSet);
     }
@@ -54,6 +82,30 @@ public class MediaRow extends JdbcRow {
         super.changeField("base_path_hash", base_path_hash);
     }
 
+    public void setSizeBytes(Long size_bytes) {
+        super.changeField("size_bytes", size_bytes);
+    }
+
+    public void setWidth(Integer width) {
+        super.changeField("width", width);
+    }
+
+    public void setHeight(Integer height) {
+        super.changeField("height", height);
+    }
+
+    public void setMediaType(String media_type) {
+        super.changeField("media_type", media_type);
+    }
+
+    public void setExtension(String extension) {
+        super.changeField("extension", extension);
+    }
+
+    public void setFingerprint(Long fingerprint) {
+        super.changeField("fingerprint", fingerprint);
+    }
+
     public Long getId() {
         return id;
     }
@@ -100,4 +152,87 @@ public class MediaRow extends JdbcRow {
     public Long getBasePathHash() {
         return base_path_hash;
     }
+
+    /**
+     * @return the size of the file at the time it was indexed, or null if it has not been indexed since the column
+     * was added.
+     */
+    public Long getSizeBytes() {
+        return size_bytes;
+    }
+
+    /**
+     * @return the width of the media as read from the file header, or null if it is unknown.
+     */
+    public Integer getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the media as read from the file header, or null if it is unknown.
+     */
+    public Integer getHeight() {
+        return height;
+    }
+
+    /**
+     * @return {@link #MEDIA_TYPE_IMAGE} or {@link #MEDIA_TYPE_VIDEO}.
+     */
+    public String getMediaType() {
+        return media_type;
+    }
+
+    public boolean isVideo() {
+        return MEDIA_TYPE_VIDEO.equals(media_type);
+    }
+
+    /**
+     * @return the lower case extension of the file, without the leading dot.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return the content fingerprint of the file, or null if fingerprinting is disabled or it has not been indexed
+     * since.
+     */
+    public Long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * The seed of the path check, which must not be used as an id seed, as it would then no longer tell colliding paths
+     * apart. Ids are probed with the seeds 0, 1, 2 and so on.
+     */
+    private static final long PATH_CHECK_SEED = 0x5EED_C4EC_0000_0000L;
+
+    /**
+     * Calculates the id of a media file from its path. The id for attempt 0 is the regular id of the path, later
+     * attempts yield the ids to probe if the previous ones are taken by other paths.
+     */
+    public static long calculateId(String file, int attempt) {
+        return XxHash64.hash(file.getBytes(StandardCharsets.UTF_8), attempt);
+    }
+
+    /**
+     * Calculates a second hash of the path, independent of its id, to tell whether an id that is found in the media
+     * table belongs to the path without comparing the whole path.
+     */
+    public static long calculatePathCheck(String file) {
+        return XxHash64.hash(file.getBytes(StandardCharsets.UTF_8), PATH_CHECK_SEED);
+    }
+
+    public static String getExtension(String file) {
+        final int separator = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+        final int dot = file.lastIndexOf('.');
+        if (dot <= separator + 1) {
+            return "";
+        }
+        return file.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    public static String getMediaTypeForExtension(String extension) {
+        return VIDEO_EXTENSIONS.contains(extension) ? MEDIA_TYPE_VIDEO : MEDIA_TYPE_IMAGE;
+    }
 }
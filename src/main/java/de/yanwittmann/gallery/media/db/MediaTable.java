@@ -1,14 +1,29 @@
 package de.yanwittmann.gallery.media.db;
 
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.dao.DatabaseToFieldMapper;
 import de.yanwittmann.gallery.db.dao.JdbcTable;
+import de.yanwittmann.gallery.db.migration.SchemaMigration;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MediaTable extends JdbcTable<MediaRow, Long> {
 
     @Override
-    protected MediaRow createInstance(ResultSet resultSet) {
-        return new MediaRow(resultSet);
+    protected MediaRow createInstance() {
+        return new MediaRow();
     }
 
     @Override
@@ -16,6 +31,153 @@ public class MediaTable extends JdbcTable<MediaRow, Long> {
         return "db/schema/media.sql";
     }
 
+    @Override
+    protected List<SchemaMigration> getSchemaMigrations() {
+        return Arrays.asList(
+                SchemaMigration.script(1, getSchemaResourcePath()),
+                SchemaMigration.script(2, "db/schema/media-002-sort-indexes.sql"),
+                SchemaMigration.of(3, "media attributes", connection -> {
+                    SchemaMigration.script(3, "db/schema/media-003-media-attributes.sql").apply(connection);
+                    backfillMediaTypes(connection);
+                }),
+                SchemaMigration.script(4, "db/schema/media-004-fingerprint.sql"),
+                SchemaMigration.of(5, "xxHash64 ids", this::rekeyIds),
+                SchemaMigration.script(6, "db/schema/media-006-base-path-index.sql")
+        );
+    }
+
+    private static final String ID_MIGRATION_TABLE = "media_id_migration";
+
+    /**
+     * Changes the ids of the existing rows from the previous polynomial path hash to {@link MediaRow#calculateId}.
+     * New ids are probed until they neither collide with each other nor with an old id of another row, so that every
+     * row can be updated in place without a temporary conflict.
+     * <p>
+     * The thumbnail cache is keyed by the ids of media without a fingerprint, so the changed ids are kept in a table
+     * until the cache has been rekeyed, see {@link #getIdMigration()}.
+     */
+    private void rekeyIds(Connection connection) throws SQLException {
+        final List<Long> oldIds = new ArrayList<>();
+        final List<String> files = new ArrayList<>();
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery("SELECT id, file FROM " + getTableName())) {
+            while (resultSet.next()) {
+                oldIds.add(resultSet.getLong(1));
+                files.add(resultSet.getString(2));
+            }
+        }
+
+        final Set<Long> takenOldIds = new HashSet<>(oldIds);
+        final Set<Long> assignedIds = new HashSet<>();
+
+        try (Statement create = connection.createStatement()) {
+            create.execute("CREATE TABLE IF NOT EXISTS " + ID_MIGRATION_TABLE + " (old_id INTEGER PRIMARY KEY NOT NULL, new_id INTEGER NOT NULL)");
+        }
+
+        try (PreparedStatement update = connection.prepareStatement("UPDATE " + getTableName() + " SET id = ? WHERE id = ?");
+             PreparedStatement record = connection.prepareStatement("INSERT OR REPLACE INTO " + ID_MIGRATION_TABLE + " (old_id, new_id) VALUES (?, ?)")) {
+            for (int i = 0; i < oldIds.size(); i++) {
+                final long oldId = oldIds.get(i);
+
+                long newId;
+                int attempt = 0;
+                do {
+                    newId = MediaRow.calculateId(files.get(i), attempt++);
+                } while (assignedIds.contains(newId) || (newId != oldId && takenOldIds.contains(newId)));
+                assignedIds.add(newId);
+
+                if (newId == oldId) {
+                    continue;
+                }
+                update.setLong(1, newId);
+                update.setLong(2, oldId);
+                update.addBatch();
+                record.setLong(1, oldId);
+                record.setLong(2, newId);
+                record.addBatch();
+
+                if (i % DEFAULT_BATCH_SIZE == DEFAULT_BATCH_SIZE - 1) {
+                    update.executeBatch();
+                    record.executeBatch();
+                }
+            }
+            update.executeBatch();
+            record.executeBatch();
+        }
+    }
+
+    /**
+     * @return all ids of the table in ascending order.
+     */
+    public long[] getAllIds() throws SQLException {
+        return getLongs(connection -> {
+            try {
+                return connection.prepareStatement("SELECT id FROM " + getTableName() + " ORDER BY id");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Reads the last edited time of a projection query in milliseconds, the column has been written as a timestamp.
+     */
+    public static long getLastEditedMillis(ResultSet resultSet, String column) throws SQLException {
+        final Object value = resultSet.getObject(column);
+        final Timestamp lastEdited = value == null ? null : (Timestamp) DatabaseToFieldMapper.TIMESTAMP.getMapper().apply(value);
+        return lastEdited == null ? 0 : lastEdited.getTime();
+    }
+
+    /**
+     * @return the ids that have been changed by the id migration and whose thumbnails have not been rekeyed yet, mapped
+     * from the old to the new id.
+     */
+    public Map<Long, Long> getIdMigration() throws SQLException {
+        final Map<Long, Long> ids = new HashMap<>();
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             Statement statement = connection.createStatement();
+             ResultSet tables = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = '" + ID_MIGRATION_TABLE + "'")) {
+            if (!tables.next()) {
+                return ids;
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT old_id, new_id FROM " + ID_MIGRATION_TABLE)) {
+                while (resultSet.next()) {
+                    ids.put(resultSet.getLong(1), resultSet.getLong(2));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Removes the ids of the id migration once the thumbnails have been rekeyed.
+     */
+    public void clearIdMigration() throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + ID_MIGRATION_TABLE);
+        }
+    }
+
+    /**
+     * Derives the media type and extension of the existing rows from their path, so that the type filters work
+     * without a rescan. The size and dimensions are filled in once the files are indexed again.
+     */
+    private void backfillMediaTypes(Connection connection) throws SQLException {
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery("SELECT id, file FROM " + getTableName());
+             PreparedStatement update = connection.prepareStatement("UPDATE " + getTableName() + " SET media_type = ?, extension = ? WHERE id = ?")) {
+            while (resultSet.next()) {
+                final String extension = MediaRow.getExtension(resultSet.getString(2));
+                update.setString(1, MediaRow.getMediaTypeForExtension(extension));
+                update.setString(2, extension);
+                update.setLong(3, resultSet.getLong(1));
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+    }
+
     @Override
     public String getTableName() {
         return "media";
@@ -0,0 +1,36 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+/**
+ * Counts events in one-second buckets over the last minute.
+ */
+class ThroughputCounter {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final long[] counts = new long[WINDOW_SECONDS];
+    private final long[] seconds = new long[WINDOW_SECONDS];
+
+    synchronized void record() {
+        final long now = System.currentTimeMillis() / 1000;
+        final int bucket = (int) (now % WINDOW_SECONDS);
+        if (seconds[bucket] != now) {
+            seconds[bucket] = now;
+            counts[bucket] = 0;
+        }
+        counts[bucket]++;
+    }
+
+    /**
+     * @return the average amount of events per second over the last minute.
+     */
+    synchronized double getPerSecond() {
+        final long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (now - seconds[i] < WINDOW_SECONDS) {
+                total += counts[i];
+            }
+        }
+        return total / (double) WINDOW_SECONDS;
+    }
+}
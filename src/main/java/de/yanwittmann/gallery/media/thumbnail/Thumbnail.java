@@ -0,0 +1,88 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A thumbnail stored in a segment of the {@link ThumbnailCache}. The data is a view of the memory mapped segment, so
+ * serving it does not copy it onto the heap or issue a read call per request.
+ */
+public class Thumbnail extends AbstractResource {
+
+    private final String fileName;
+    private final ByteBuffer data;
+
+    Thumbnail(String fileName, ByteBuffer data) {
+        this.fileName = fileName;
+        this.data = data;
+    }
+
+    @Override
+    public String getFilename() {
+        return fileName;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Thumbnail [" + fileName + "]";
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return data.remaining();
+    }
+
+    /**
+     * @return a read-only view of the thumbnail data.
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        final ByteBuffer buffer = getData();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                final int count = Math.min(len, buffer.remaining());
+                buffer.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
@@ -0,0 +1,730 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store for generated thumbnails with a fixed byte budget.
+ * <p>
+ * Thumbnails are appended as records to large segment files ({@code segment-N.dat}) in the thumbnail directory instead
+ * of being stored as one file each, and an in-memory index maps every (size, source hash) pair to the location of its
+ * record. The index is rebuilt by reading the segments on startup, where a later record for the same thumbnail
+ * replaces an earlier one. Thumbnails are served from read-only memory mappings of the segments.
+ * <p>
+ * An entry is only valid for the last edited time of the source it was created from, if the source changes, a new
+ * thumbnail is generated and replaces the old one. When the stored thumbnails exceed the byte budget, the least
+ * recently accessed ones are evicted. The access time is kept in the record header, so that it survives a restart.
+ * Replaced and evicted records are marked as removed in their header, so that they are not loaded again, and stay in
+ * their segment until the segment is mostly unused, at which point its remaining records are copied to the current
+ * segment in the background and the segment is deleted.
+ * <p>
+ * Only one thumbnail per source and size is generated at a time, concurrent callers wait for and share the result of
+ * the running generation. A thumbnail only becomes visible once its record has been written completely.
+ */
+public class ThumbnailCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    private static final Pattern SEGMENT_FILE_NAME_PATTERN = Pattern.compile("^segment-(\\d+)\\.dat$");
+
+    /**
+     * Fraction of the byte budget that the cache is reduced to when it is full, so that eviction does not run on every
+     * new thumbnail.
+     */
+    private static final double EVICTION_TARGET_RATIO = 0.9;
+
+    /**
+     * A new segment is started once the current one has reached this size.
+     */
+    private static final long DEFAULT_SEGMENT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Segments are compacted once less than this fraction of their bytes belongs to thumbnails that are still in use.
+     */
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+    /**
+     * The access time in a record header is only rewritten once it is this much older than the actual access time, so
+     * that serving a thumbnail does not write to the segment every time.
+     */
+    private static final long ACCESS_PERSIST_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final int RECORD_MAGIC = 0x54484D42;
+    /**
+     * Replaces the magic of a record that has been removed from the cache.
+     */
+    private static final int REMOVED_RECORD_MAGIC = 0x54484D58;
+    /**
+     * magic, size, source hash, last edited, data length, crc, last access and the length byte of the extension.
+     * The magic, the source hash and the last access are not covered by the crc, as they are rewritten in place.
+     */
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 8 + 8 + 1;
+    private static final int SOURCE_HASH_OFFSET = 4 + 4;
+    private static final int LAST_ACCESS_OFFSET = 4 + 4 + 8 + 8 + 4 + 8;
+
+    /**
+     * Written to the thumbnail directory to detect thumbnails of older versions that have to be removed, as they are
+     * stored differently.
+     */
+    private static final String VERSION_FILE_NAME = "cache.version";
+    private static final String VERSION = "4";
+
+    @FunctionalInterface
+    public interface ThumbnailGenerator {
+        /**
+         * @param output the stream to write the thumbnail to.
+         * @return the file extension matching the format the thumbnail has been written in.
+         */
+        String generate(OutputStream output) throws IOException;
+    }
+
+    private static class Entry {
+        private final ThumbnailSegment segment;
+        private final long dataOffset;
+        private final int dataLength;
+        private final int recordLength;
+        private final int size;
+        private final long sourceHash;
+        private final long lastEdited;
+        private final String extension;
+        private volatile long lastAccess;
+        /**
+         * The access time that is stored in the record header.
+         */
+        private volatile long persistedAccess;
+
+        private Entry(ThumbnailSegment segment, long dataOffset, int dataLength, int recordLength, int size, long sourceHash, long lastEdited, String extension, long lastAccess) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.recordLength = recordLength;
+            this.size = size;
+            this.sourceHash = sourceHash;
+            this.lastEdited = lastEdited;
+            this.extension = extension;
+            this.lastAccess = lastAccess;
+            this.persistedAccess = lastAccess;
+        }
+
+        private String getFileName() {
+            return key(size, sourceHash) + "-" + lastEdited + "." + extension;
+        }
+
+        private long getRecordOffset() {
+            return dataOffset - extension.length() - RECORD_HEADER_BYTES;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final long segmentMaxBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Thumbnail>> generations = new ConcurrentHashMap<>();
+    private final NavigableMap<Integer, ThumbnailSegment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final Object appendLock = new Object();
+    private volatile ThumbnailSegment activeSegment;
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "thumbnail-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong sharedGenerations = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    public ThumbnailCache(File directory, long maxBytes) {
+        this(directory, maxBytes, DEFAULT_SEGMENT_MAX_BYTES);
+    }
+
+    ThumbnailCache(File directory, long maxBytes, long segmentMaxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentMaxBytes = segmentMaxBytes;
+
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        try {
+            loadSegments();
+            synchronized (appendLock) {
+                activeSegment = segments.isEmpty() || segments.lastEntry().getValue().getLength() >= segmentMaxBytes
+                        ? createSegment() : segments.lastEntry().getValue();
+                for (ThumbnailSegment segment : segments.values()) {
+                    if (segment != activeSegment) {
+                        segment.seal();
+                    }
+                }
+            }
+            for (ThumbnailSegment segment : segments.values()) {
+                scheduleCompactionIfNecessary(segment, segment.getLiveBytes().get());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open thumbnail cache in " + directory + ": " + e.getMessage(), e);
+        }
+        evictIfNecessary();
+    }
+
+    private void loadSegments() throws IOException {
+        final File versionFile = new File(directory, VERSION_FILE_NAME);
+        final boolean currentVersion = versionFile.exists() && VERSION.equals(readVersion(versionFile));
+
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+
+        final List<ThumbnailSegment> found = new ArrayList<>();
+        for (File file : files) {
+            if (file.equals(versionFile)) {
+                continue;
+            }
+            final Matcher matcher = SEGMENT_FILE_NAME_PATTERN.matcher(file.getName());
+            if (!currentVersion || !file.isFile() || !matcher.matches()) {
+                // thumbnails of older versions were stored as one file per thumbnail
+                deleteFile(file);
+                continue;
+            }
+            found.add(new ThumbnailSegment(Integer.parseInt(matcher.group(1)), file));
+        }
+
+        found.sort(Comparator.comparingInt(ThumbnailSegment::getId));
+        for (ThumbnailSegment segment : found) {
+            segments.put(segment.getId(), segment);
+            loadSegment(segment);
+        }
+
+        if (!currentVersion) {
+            Files.write(versionFile.toPath(), VERSION.getBytes(StandardCharsets.UTF_8));
+        }
+
+        LOG.info("Loaded {} cached thumbnails with {} bytes from {} segments", entries.size(), totalBytes.get(), segments.size());
+    }
+
+    /**
+     * Adds all records of the segment to the index, replacing records of earlier segments for the same thumbnail.
+     * Records that have been removed from the cache are skipped.
+     */
+    private void loadSegment(ThumbnailSegment segment) throws IOException {
+        final long length = segment.getLength();
+        long offset = 0;
+
+        while (offset + RECORD_HEADER_BYTES <= length) {
+            final ByteBuffer header = segment.slice(offset, RECORD_HEADER_BYTES);
+            final int magic = header.getInt();
+            if (magic != RECORD_MAGIC && magic != REMOVED_RECORD_MAGIC) {
+                break;
+            }
+            final int size = header.getInt();
+            final long sourceHash = header.getLong();
+            final long lastEdited = header.getLong();
+            final int dataLength = header.getInt();
+            final long crc = header.getLong();
+            final long lastAccess = header.getLong();
+            final int extensionLength = header.get() & 0xFF;
+
+            final long dataOffset = offset + RECORD_HEADER_BYTES + extensionLength;
+            if (dataLength < 0 || dataOffset + dataLength > length) {
+                break;
+            }
+            final int recordLength = RECORD_HEADER_BYTES + extensionLength + dataLength;
+            if (magic == REMOVED_RECORD_MAGIC) {
+                offset += recordLength;
+                continue;
+            }
+
+            final ByteBuffer extensionAndData = segment.slice(offset + RECORD_HEADER_BYTES, extensionLength + dataLength);
+            if (crc(extensionAndData.duplicate()) != crc) {
+                break;
+            }
+            final byte[] extension = new byte[extensionLength];
+            extensionAndData.get(extension);
+
+            final String key = key(size, sourceHash);
+            final Entry entry = new Entry(segment, dataOffset, dataLength, recordLength, size, sourceHash, lastEdited,
+                    new String(extension, StandardCharsets.US_ASCII), lastAccess);
+            addEntry(key, entry);
+
+            offset += recordLength;
+        }
+
+        if (offset < length) {
+            // the application was stopped whilst a record was written
+            LOG.warn("Discarding {} bytes of incomplete thumbnail records at the end of {}", length - offset, segment.getFile());
+            segment.truncate(offset);
+        }
+    }
+
+    private static String readVersion(File versionFile) {
+        try {
+            return new String(Files.readAllBytes(versionFile.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long crc(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    private static String key(int size, long sourceHash) {
+        return size + "-" + sourceHash;
+    }
+
+    /**
+     * Returns the cached thumbnail for the source, or generates and stores it if it is missing or was created for a
+     * different last edited time of the source.
+     *
+     * @param sourceHash the hash identifying the source media.
+     * @param lastEdited the last edited time of the source media.
+     * @param size       the thumbnail size.
+     * @param generator  writes the thumbnail to the stream it is given.
+     * @return the thumbnail.
+     */
+    public Thumbnail getOrCreate(long sourceHash, long lastEdited, int size, ThumbnailGenerator generator) throws IOException {
+        final String key = key(size, sourceHash);
+
+        while (true) {
+            final Thumbnail cached = getIfPresent(sourceHash, lastEdited, size);
+            if (cached != null) {
+                return cached;
+            }
+
+            final CompletableFuture<Thumbnail> generation = new CompletableFuture<>();
+            final CompletableFuture<Thumbnail> running = generations.putIfAbsent(key, generation);
+
+            if (running == null) {
+                try {
+                    final Thumbnail thumbnail = create(key, sourceHash, lastEdited, size, generator);
+                    generation.complete(thumbnail);
+                    return thumbnail;
+                } catch (Throwable e) {
+                    generation.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    generations.remove(key, generation);
+                }
+            }
+
+            // another thread is generating this thumbnail, wait for it and check again, as it may have been generated
+            // for a different last edited time of the source
+            sharedGenerations.incrementAndGet();
+            awaitGeneration(running);
+        }
+    }
+
+    private Thumbnail create(String key, long sourceHash, long lastEdited, int size, ThumbnailGenerator generator) throws IOException {
+        final Entry existing = entries.get(key);
+        if (existing != null && existing.lastEdited == lastEdited) {
+            // a generation has finished between the lookup and claiming the generation
+            hits.incrementAndGet();
+            return read(existing);
+        }
+        if (existing != null && removeEntry(key, existing)) {
+            invalidations.incrementAndGet();
+        }
+
+        misses.incrementAndGet();
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final String extension = generator.generate(data);
+
+        final Entry created = append(size, sourceHash, lastEdited, extension.getBytes(StandardCharsets.US_ASCII), data.toByteArray(), System.currentTimeMillis());
+        addEntry(key, created);
+
+        evictIfNecessary();
+
+        return read(created);
+    }
+
+    private Entry append(int size, long sourceHash, long lastEdited, byte[] extension, byte[] data, long lastAccess) throws IOException {
+        final ByteBuffer extensionAndData = ByteBuffer.allocate(extension.length + data.length).put(extension).put(data);
+        extensionAndData.flip();
+
+        final int recordLength = RECORD_HEADER_BYTES + extension.length + data.length;
+        final ByteBuffer record = ByteBuffer.allocate(recordLength)
+                .putInt(RECORD_MAGIC)
+                .putInt(size)
+                .putLong(sourceHash)
+                .putLong(lastEdited)
+                .putInt(data.length)
+                .putLong(crc(extensionAndData.duplicate()))
+                .putLong(lastAccess)
+                .put((byte) extension.length)
+                .put(extensionAndData);
+        record.flip();
+
+        synchronized (appendLock) {
+            if (activeSegment.getLength() >= segmentMaxBytes) {
+                final ThumbnailSegment sealed = activeSegment;
+                sealed.seal();
+                activeSegment = createSegment();
+                scheduleCompactionIfNecessary(sealed, sealed.getLiveBytes().get());
+            }
+            final long offset = activeSegment.append(record);
+            return new Entry(activeSegment, offset + RECORD_HEADER_BYTES + extension.length, data.length, recordLength, size, sourceHash, lastEdited,
+                    new String(extension, StandardCharsets.US_ASCII), lastAccess);
+        }
+    }
+
+    private ThumbnailSegment createSegment() throws IOException {
+        final int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        final ThumbnailSegment segment = new ThumbnailSegment(id, new File(directory, "segment-" + id + ".dat"));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void addEntry(String key, Entry entry) {
+        entry.segment.getLiveBytes().addAndGet(entry.recordLength);
+        totalBytes.addAndGet(entry.recordLength);
+        final Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            releaseEntry(replaced);
+        }
+    }
+
+    private boolean removeEntry(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            markRemoved(entry);
+            releaseEntry(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the record of the entry as removed, so that it is not loaded again after a restart.
+     */
+    private void markRemoved(Entry entry) {
+        final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).putInt(REMOVED_RECORD_MAGIC);
+        magic.flip();
+        try {
+            entry.segment.write(magic, entry.getRecordOffset());
+        } catch (IOException e) {
+            // the segment has been compacted and deleted in the meantime
+            LOG.debug("Failed to mark thumbnail record in {} as removed: {}", entry.segment.getFile(), e.toString());
+        }
+    }
+
+    /**
+     * Updates the access time of the entry, and the one in its record header if it is outdated.
+     */
+    private void touch(Entry entry) {
+        final long now = System.currentTimeMillis();
+        entry.lastAccess = now;
+        if (now - entry.persistedAccess < ACCESS_PERSIST_INTERVAL_MILLIS) {
+            return;
+        }
+        entry.persistedAccess = now;
+
+        final ByteBuffer lastAccess = ByteBuffer.allocate(Long.BYTES).putLong(now);
+        lastAccess.flip();
+        try {
+            entry.segment.write(lastAccess, entry.getRecordOffset() + LAST_ACCESS_OFFSET);
+        } catch (IOException e) {
+            LOG.debug("Failed to store access time of thumbnail record in {}: {}", entry.segment.getFile(), e.toString());
+        }
+    }
+
+    private void releaseEntry(Entry entry) {
+        totalBytes.addAndGet(-entry.recordLength);
+        final long live = entry.segment.getLiveBytes().addAndGet(-entry.recordLength);
+        scheduleCompactionIfNecessary(entry.segment, live);
+    }
+
+    private Thumbnail read(Entry entry) throws IOException {
+        return new Thumbnail(entry.getFileName(), entry.segment.slice(entry.dataOffset, entry.dataLength));
+    }
+
+    private static void awaitGeneration(CompletableFuture<Thumbnail> generation) throws IOException {
+        try {
+            generation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for thumbnail generation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to create thumbnail: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @return the cached thumbnail for the source, or null if there is no valid one.
+     */
+    public Thumbnail getIfPresent(long sourceHash, long lastEdited, int size) throws IOException {
+        final Entry existing = entries.get(key(size, sourceHash));
+        if (existing != null && existing.lastEdited == lastEdited) {
+            hits.incrementAndGet();
+            touch(existing);
+            return read(existing);
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the cache uses so much of its byte budget that adding more thumbnails would evict others.
+     */
+    public boolean isNearCapacity() {
+        return totalBytes.get() >= maxBytes * EVICTION_TARGET_RATIO;
+    }
+
+    private synchronized void evictIfNecessary() {
+        if (totalBytes.get() <= maxBytes) {
+            compactIfOverBudget();
+            return;
+        }
+
+        final long targetBytes = (long) (maxBytes * EVICTION_TARGET_RATIO);
+        final List<Map.Entry<String, Entry>> byAccess = new ArrayList<>(entries.entrySet());
+        byAccess.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+
+        for (Map.Entry<String, Entry> candidate : byAccess) {
+            if (totalBytes.get() <= targetBytes) {
+                break;
+            }
+            if (removeEntry(candidate.getKey(), candidate.getValue())) {
+                evictions.incrementAndGet();
+            }
+        }
+
+        LOG.info("Evicted thumbnails down to {} of {} bytes", totalBytes.get(), maxBytes);
+        compactIfOverBudget();
+    }
+
+    /**
+     * Removed records use disk space until their segment is compacted. If the segments use more than the byte budget,
+     * the sealed segments with the fewest bytes in use are compacted, even before most of their bytes are unused.
+     */
+    private void compactIfOverBudget() {
+        long segmentBytes = 0;
+        for (ThumbnailSegment segment : segments.values()) {
+            segmentBytes += segment.getLength();
+        }
+        if (segmentBytes <= maxBytes) {
+            return;
+        }
+
+        final List<ThumbnailSegment> candidates = new ArrayList<>();
+        for (ThumbnailSegment segment : segments.values()) {
+            if (segment.isSealed()) {
+                candidates.add(segment);
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(segment -> segment.getLiveBytes().get() / (double) Math.max(1, segment.getLength())));
+
+        for (ThumbnailSegment segment : candidates) {
+            if (segmentBytes <= maxBytes) {
+                break;
+            }
+            // the bytes in use are copied to the active segment, only the unused ones are freed
+            final long unusedBytes = segment.getLength() - segment.getLiveBytes().get();
+            if (unusedBytes <= 0) {
+                continue;
+            }
+            segmentBytes -= unusedBytes;
+            if (segment.startCompaction()) {
+                compactionExecutor.execute(() -> compact(segment));
+            }
+        }
+    }
+
+    private void scheduleCompactionIfNecessary(ThumbnailSegment segment, long liveBytes) {
+        // the segment that is currently appended to is checked again once it has been sealed
+        if (activeSegment == null || !segment.isSealed() || liveBytes >= segment.getLength() * COMPACTION_LIVE_RATIO) {
+            return;
+        }
+        if (segment.startCompaction()) {
+            compactionExecutor.execute(() -> compact(segment));
+        }
+    }
+
+    /**
+     * Copies the thumbnails that are still in use from the segment to the active segment and deletes the segment.
+     */
+    private void compact(ThumbnailSegment segment) {
+        long moved = 0;
+        try {
+            for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+                final Entry entry = candidate.getValue();
+                if (entry.segment != segment) {
+                    continue;
+                }
+
+                final ByteBuffer data = segment.slice(entry.dataOffset, entry.dataLength);
+                final byte[] bytes = new byte[entry.dataLength];
+                data.get(bytes);
+
+                final Entry copy = append(entry.size, entry.sourceHash, entry.lastEdited,
+                        entry.extension.getBytes(StandardCharsets.US_ASCII), bytes, entry.lastAccess);
+
+                copy.segment.getLiveBytes().addAndGet(copy.recordLength);
+                if (entries.replace(candidate.getKey(), entry, copy)) {
+                    segment.getLiveBytes().addAndGet(-entry.recordLength);
+                    moved++;
+                } else {
+                    // the thumbnail has been replaced or evicted in the meantime, the copy is not used
+                    markRemoved(copy);
+                    copy.segment.getLiveBytes().addAndGet(-copy.recordLength);
+                }
+            }
+
+            synchronized (appendLock) {
+                segments.remove(segment.getId(), segment);
+            }
+            segment.close();
+            deleteFile(segment.getFile());
+            compactions.incrementAndGet();
+            LOG.info("Compacted thumbnail segment {}, moved {} thumbnails", segment.getFile().getName(), moved);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to compact thumbnail segment {}: {}", segment.getFile(), e.getMessage());
+        }
+    }
+
+    /**
+     * Changes the source hashes of cached thumbnails whose sources have been given a new hash without a change of their
+     * content. The source hash is rewritten in the header of each record in place, as it is not covered by the checksum,
+     * so no thumbnail has to be generated or copied again. A thumbnail that already exists for the new hash is kept.
+     * <p>
+     * Runs on the compaction thread, so that no record is moved to another segment whilst it is rewritten.
+     *
+     * @param sourceHashes the new source hashes, by old source hash.
+     * @return the amount of thumbnails that have been rekeyed.
+     */
+    public int rekey(Map<Long, Long> sourceHashes) throws IOException {
+        final Future<Integer> rekeyed = compactionExecutor.submit(() -> rekeyEntries(sourceHashes));
+        try {
+            return rekeyed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst rekeying thumbnails", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to rekey thumbnails: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private int rekeyEntries(Map<Long, Long> sourceHashes) throws IOException {
+        int rekeyed = 0;
+        for (Map.Entry<String, Entry> candidate : new ArrayList<>(entries.entrySet())) {
+            final Entry entry = candidate.getValue();
+            final Long newSourceHash = sourceHashes.get(entry.sourceHash);
+            if (newSourceHash == null) {
+                continue;
+            }
+
+            final String newKey = key(entry.size, newSourceHash);
+            if (entries.containsKey(newKey)) {
+                removeEntry(candidate.getKey(), entry);
+                continue;
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(newSourceHash);
+            header.flip();
+            entry.segment.write(header, entry.getRecordOffset() + SOURCE_HASH_OFFSET);
+
+            final Entry moved = new Entry(entry.segment, entry.dataOffset, entry.dataLength, entry.recordLength, entry.size,
+                    newSourceHash, entry.lastEdited, entry.extension, entry.lastAccess);
+            if (entries.remove(candidate.getKey(), entry)) {
+                if (entries.putIfAbsent(newKey, moved) == null) {
+                    rekeyed++;
+                } else {
+                    releaseEntry(entry);
+                }
+            }
+        }
+
+        LOG.info("Rekeyed {} cached thumbnails", rekeyed);
+        return rekeyed;
+    }
+
+    private static void deleteFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOG.warn("Failed to delete thumbnail file {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes all cached thumbnails.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<String, Entry> entry : new ArrayList<>(entries.entrySet())) {
+            entries.remove(entry.getKey(), entry.getValue());
+        }
+        totalBytes.set(0);
+
+        synchronized (appendLock) {
+            for (ThumbnailSegment segment : new ArrayList<>(segments.values())) {
+                segments.remove(segment.getId());
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close thumbnail segment {}: {}", segment.getFile(), e.getMessage());
+                }
+                deleteFile(segment.getFile());
+            }
+            try {
+                activeSegment = createSegment();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create thumbnail segment in " + directory + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public JSONObject toJson() {
+        long segmentBytes = 0;
+        for (ThumbnailSegment segment : segments.values()) {
+            segmentBytes += segment.getLength();
+        }
+        return new JSONObject()
+                .put("entries", entries.size())
+                .put("bytes", totalBytes.get())
+                .put("maxBytes", maxBytes)
+                .put("segments", segments.size())
+                .put("segmentBytes", segmentBytes)
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("evictions", evictions.get())
+                .put("invalidations", invalidations.get())
+                .put("sharedGenerations", sharedGenerations.get())
+                .put("generating", generations.size())
+                .put("compactions", compactions.get());
+    }
+}
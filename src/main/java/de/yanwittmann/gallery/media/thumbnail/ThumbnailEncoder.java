@@ -0,0 +1,54 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import de.yanwittmann.gallery.util.ImageUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * Writes thumbnails in a compact format. Photos are written as JPEG, which is several times smaller than PNG for the
+ * same image, and only images with transparency are written as PNG, unless a single format is configured.
+ */
+public class ThumbnailEncoder {
+
+    public static final String FORMAT_AUTO = "auto";
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_PNG = "png";
+
+    private final String format;
+    private final float jpegQuality;
+
+    /**
+     * @param format      one of {@link #FORMAT_AUTO}, {@link #FORMAT_JPEG} or {@link #FORMAT_PNG}.
+     * @param jpegQuality the JPEG compression quality between 0 and 1.
+     */
+    public ThumbnailEncoder(String format, float jpegQuality) {
+        if (!FORMAT_AUTO.equals(format) && !FORMAT_JPEG.equals(format) && !FORMAT_PNG.equals(format)) {
+            throw new IllegalArgumentException("Unknown thumbnail format: " + format);
+        }
+        if (jpegQuality < 0 || jpegQuality > 1) {
+            throw new IllegalArgumentException("JPEG quality must be between 0 and 1: " + jpegQuality);
+        }
+        this.format = format;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Writes the thumbnail to the stream.
+     *
+     * @return the file extension of the format that has been written.
+     */
+    public String encode(BufferedImage thumbnail, OutputStream output) throws IOException {
+        if (FORMAT_PNG.equals(format) || (FORMAT_AUTO.equals(format) && ImageUtil.hasTransparency(thumbnail))) {
+            if (!ImageIO.write(thumbnail, "png", output)) {
+                throw new IOException("No PNG writer available for image type " + thumbnail.getType());
+            }
+            return "png";
+        }
+
+        ImageUtil.writeJpeg(thumbnail, output, jpegQuality);
+        return "jpg";
+    }
+}
@@ -0,0 +1,401 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import de.yanwittmann.gallery.util.ImageUtil;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates thumbnails on a fixed number of background worker threads.
+ * <p>
+ * Thumbnails are generated as a pyramid of fixed sizes: the source is decoded once for the largest missing size, and
+ * every smaller size is scaled down from the next larger one. Sizes that the thumbnail embedded in the EXIF data of the
+ * source is large enough for are scaled from that one instead, and are created before the source is decoded, so that
+ * requests for them do not wait for the larger sizes. Requests are served with the smallest pyramid size that is not
+ * smaller than the requested size, so changing the grid zoom does not decode the sources again.
+ * <p>
+ * Thumbnails of newly indexed media are queued with a low priority, so they are generated before the user scrolls to
+ * them. Thumbnails requested by the user are queued with a high priority and thereby overtake all background work,
+ * including an already queued background job for the same source, whose result is then shared with the request.
+ */
+public class ThumbnailPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThumbnailPipeline.class);
+
+    private static final int PRIORITY_REQUESTED = 0;
+    private static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * Background jobs beyond this amount are dropped, they are generated on demand instead.
+     */
+    private static final int MAX_BACKGROUND_JOBS = 100000;
+
+    /**
+     * Sources that could not be decoded are tried again after this time, as the failure may have been temporary, for
+     * example for a file on a network share.
+     */
+    private static final long FAILED_SOURCE_RETRY_MILLIS = 60 * 60 * 1000;
+    private static final int MAX_FAILED_SOURCES = 10000;
+
+    /**
+     * Requested thumbnails are generated newest first, so a request that has been overtaken by many newer ones stops
+     * waiting after this time and the source is served as it is instead.
+     */
+    static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    private static class Job {
+        private final String key;
+        private final File source;
+        private final boolean video;
+        private final long sourceHash;
+        private final long lastEdited;
+        /**
+         * The thumbnail of each pyramid size, completed as soon as that size has been created.
+         */
+        private final Map<Integer, CompletableFuture<Thumbnail>> results = new HashMap<>();
+
+        private Job(String key, File source, boolean video, long sourceHash, long lastEdited, int[] sizes) {
+            this.key = key;
+            this.source = source;
+            this.video = video;
+            this.sourceHash = sourceHash;
+            this.lastEdited = lastEdited;
+            for (int size : sizes) {
+                results.put(size, new CompletableFuture<>());
+            }
+        }
+
+        private boolean isDone() {
+            return results.values().stream().allMatch(CompletableFuture::isDone);
+        }
+
+        private void fail(Throwable e) {
+            for (CompletableFuture<Thumbnail> result : results.values()) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Position of a job in the queue. A job can be queued several times with different priorities, the first entry
+     * that is taken from the queue generates it and all later ones are skipped.
+     */
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        private final Job job;
+        private final int priority;
+        private final long sequence;
+
+        private QueueEntry(Job job, int priority, long sequence) {
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueueEntry other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            // requested thumbnails are generated newest first, as the user has most likely scrolled past the older ones
+            return priority == PRIORITY_REQUESTED ? Long.compare(other.sequence, sequence) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Thrown if the source has been read but could not be decoded, as opposed to failures to read the source at all.
+     */
+    private static class DecodeException extends IOException {
+        private DecodeException(File source, Throwable cause) {
+            super("Failed to decode " + source + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * The images the next smaller pyramid size is scaled from. The source is only decoded once a size is missing from
+     * the cache that the EXIF thumbnail is too small for, and then only with the resolution of that size.
+     */
+    private static class Pyramid {
+        private final File source;
+        private final boolean video;
+        private final ThumbnailEncoder encoder;
+        private BufferedImage image;
+        private BufferedImage exifImage;
+
+        private Pyramid(File source, boolean video, ThumbnailEncoder encoder) {
+            this.source = source;
+            this.video = video;
+            this.encoder = encoder;
+        }
+
+        /**
+         * Reads the thumbnail embedded in the EXIF data of the source.
+         *
+         * @return the longest side of the EXIF thumbnail, or 0 if the source does not contain one.
+         */
+        private int readExifThumbnail() {
+            if (video) {
+                return 0;
+            }
+            exifImage = ImageUtil.readExifThumbnail(source);
+            return exifImage == null ? 0 : Math.max(exifImage.getWidth(), exifImage.getHeight());
+        }
+
+        private String generateFromExif(int size, OutputStream output) throws IOException {
+            exifImage = ImageUtil.scaleDown(exifImage, size);
+            return encoder.encode(exifImage, output);
+        }
+
+        private String generate(int size, OutputStream output) throws IOException {
+            if (image == null) {
+                image = decode(size);
+            }
+            image = ImageUtil.scaleDown(image, size);
+            return encoder.encode(image, output);
+        }
+
+        private BufferedImage decode(int size) throws IOException {
+            // the image readers report missing and unreadable files like undecodable ones
+            if (!Files.isReadable(source.toPath())) {
+                throw new IOException("Cannot read " + source);
+            }
+            try {
+                return ImageUtil.readThumbnailSource(source, size, video);
+            } catch (InterruptedIOException | ClosedByInterruptException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                throw new DecodeException(source, e);
+            }
+        }
+    }
+
+    private final ThumbnailCache cache;
+    private final ThumbnailEncoder encoder;
+    private final int[] sizes;
+    private final int[] descendingSizes;
+    private final PriorityBlockingQueue<QueueEntry> queue = new PriorityBlockingQueue<>();
+    private final Map<String, Job> pendingJobs = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Sources that could not be decoded, mapped to the time of the failure. They are served as they are instead of
+     * trying to decode them on every request, until they are tried again after {@link #FAILED_SOURCE_RETRY_MILLIS}.
+     */
+    private final Map<String, Long> failedSources = new ConcurrentHashMap<>();
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ThroughputCounter throughput = new ThroughputCounter();
+    private final long requestTimeoutMillis;
+
+    /**
+     * @param cache   the cache the thumbnails are stored in.
+     * @param encoder writes the generated thumbnails.
+     * @param sizes   the sizes of the thumbnail pyramid, in ascending order.
+     * @param workers the amount of worker threads.
+     */
+    public ThumbnailPipeline(ThumbnailCache cache, ThumbnailEncoder encoder, int[] sizes, int workers) {
+        this(cache, encoder, sizes, workers, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    ThumbnailPipeline(ThumbnailCache cache, ThumbnailEncoder encoder, int[] sizes, int workers, long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.cache = cache;
+        this.encoder = encoder;
+        this.sizes = sizes.clone();
+        this.descendingSizes = Arrays.stream(sizes).map(size -> -size).sorted().map(size -> -size).toArray();
+
+        for (int i = 0; i < workers; i++) {
+            final Thread worker = new Thread(this::work, "thumbnail-worker-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.NORM_PRIORITY - 1);
+            worker.start();
+        }
+    }
+
+    private static String key(long sourceHash, long lastEdited) {
+        return sourceHash + "-" + lastEdited;
+    }
+
+    /**
+     * @return the smallest pyramid size that is at least as large as the requested size, or the largest pyramid size
+     * if the requested size exceeds all of them.
+     */
+    public int getPyramidSize(int requestedSize) {
+        for (int size : sizes) {
+            if (size >= requestedSize) {
+                return size;
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    /**
+     * Queues the generation of the thumbnail pyramid with a low priority, unless it is already queued.
+     *
+     * @param video whether the source is a video, whose first frame the thumbnails are created from.
+     */
+    public void enqueue(File source, boolean video, long sourceHash, long lastEdited) {
+        final String key = key(sourceHash, lastEdited);
+        if (pendingJobs.containsKey(key) || isFailedSource(key)) {
+            return;
+        }
+        if (pendingJobs.size() >= MAX_BACKGROUND_JOBS) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        final Job job = new Job(key, source, video, sourceHash, lastEdited, sizes);
+        if (pendingJobs.putIfAbsent(key, job) == null) {
+            queue.add(new QueueEntry(job, PRIORITY_BACKGROUND, sequence.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Returns the thumbnail of the pyramid size for the requested size, generating the pyramid ahead of all background
+     * work if it is not cached yet. Blocks until the thumbnail is available, but at most for
+     * the request timeout ({@value #DEFAULT_REQUEST_TIMEOUT_MILLIS} ms by default). The pyramid is still generated after the request has stopped waiting.
+     *
+     * @return the thumbnail, or null if the source cannot be decoded or the thumbnail has not been generated in time,
+     * and the source has to be served as it is.
+     */
+    public Thumbnail request(File source, boolean video, long sourceHash, long lastEdited, int requestedSize) throws IOException {
+        final int size = getPyramidSize(requestedSize);
+        final Thumbnail cached = cache.getIfPresent(sourceHash, lastEdited, size);
+        if (cached != null) {
+            return cached;
+        }
+
+        final String key = key(sourceHash, lastEdited);
+        if (isFailedSource(key)) {
+            return null;
+        }
+
+        final Job job = pendingJobs.computeIfAbsent(key, k -> new Job(k, source, video, sourceHash, lastEdited, sizes));
+        queue.add(new QueueEntry(job, PRIORITY_REQUESTED, sequence.incrementAndGet()));
+
+        try {
+            return job.results.get(size).get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for thumbnail of " + source, e);
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            LOG.debug("Thumbnail of {} has not been generated within {}ms, serving the source", source, requestTimeoutMillis);
+            return null;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final QueueEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final Job job = entry.job;
+            if (job.isDone()) {
+                continue;
+            }
+
+            try {
+                // background jobs must not push thumbnails the user has viewed out of the cache
+                // the job is only removed from the pending jobs, so that a request that has queued it as well still
+                // generates it from its own queue entry
+                if (entry.priority == PRIORITY_BACKGROUND && cache.isNearCapacity()) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+
+                generate(job);
+                generated.incrementAndGet();
+                throughput.record();
+            } catch (Throwable e) {
+                // errors are caught as well, as they would otherwise end the worker and leave the waiting requests hanging
+                failed.incrementAndGet();
+                if (e instanceof DecodeException) {
+                    addFailedSource(job.key);
+                }
+                LOG.warn("Failed to create thumbnails of {}: {}", job.source, e.toString());
+                job.fail(e);
+            } finally {
+                pendingJobs.remove(job.key, job);
+            }
+        }
+    }
+
+    private boolean isFailedSource(String key) {
+        final Long failedAt = failedSources.get(key);
+        if (failedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - failedAt >= FAILED_SOURCE_RETRY_MILLIS) {
+            failedSources.remove(key, failedAt);
+            return false;
+        }
+        return true;
+    }
+
+    private void addFailedSource(String key) {
+        final long now = System.currentTimeMillis();
+        if (failedSources.size() >= MAX_FAILED_SOURCES) {
+            failedSources.values().removeIf(failedAt -> now - failedAt >= FAILED_SOURCE_RETRY_MILLIS);
+            if (failedSources.size() >= MAX_FAILED_SOURCES) {
+                // the source is tried again on the next request instead
+                return;
+            }
+        }
+        failedSources.put(key, now);
+    }
+
+    private void generate(Job job) throws IOException {
+        final Pyramid pyramid = new Pyramid(job.source, job.video, encoder);
+        final int exifSize = pyramid.readExifThumbnail();
+
+        // largest first, so that every size is scaled down from the one before it
+        for (int size : descendingSizes) {
+            if (size <= exifSize) {
+                job.results.get(size).complete(cache.getOrCreate(job.sourceHash, job.lastEdited, size, output -> pyramid.generateFromExif(size, output)));
+            }
+        }
+        for (int size : descendingSizes) {
+            if (size > exifSize) {
+                job.results.get(size).complete(cache.getOrCreate(job.sourceHash, job.lastEdited, size, output -> pyramid.generate(size, output)));
+            }
+        }
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("sizes", sizes)
+                .put("queueDepth", queue.size())
+                .put("pending", pendingJobs.size())
+                .put("generated", generated.get())
+                .put("failed", failed.get())
+                .put("failedSources", failedSources.size())
+                .put("dropped", dropped.get())
+                .put("perSecond", throughput.getPerSecond());
+    }
+}
@@ -0,0 +1,162 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file that thumbnail records are appended to. Whilst records are appended, they are read with positional reads of
+ * the file. Once the segment is sealed, it no longer grows and is mapped into memory completely and only once, records
+ * are then read from the read-only mapping.
+ */
+class ThumbnailSegment {
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer mapping;
+    private volatile long length;
+    private volatile boolean sealed = false;
+
+    /**
+     * Bytes of the records in this segment that are still referenced by the cache.
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    ThumbnailSegment(int id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.length = channel.size();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    AtomicLong getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return true if the compaction of this segment has not been started before.
+     */
+    boolean startCompaction() {
+        return compacting.compareAndSet(false, true);
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Appends the record to the end of the segment. Must not be called concurrently.
+     *
+     * @return the offset the record has been written to.
+     */
+    long append(ByteBuffer record) throws IOException {
+        if (sealed) {
+            throw new IOException("Cannot append to sealed thumbnail segment " + file);
+        }
+        final long offset = length;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        length = position;
+        return offset;
+    }
+
+    /**
+     * Overwrites bytes of a record that has already been appended, which becomes visible to the mapping immediately.
+     * Thumbnails that have been read from the segment before with positional reads keep the old bytes.
+     */
+    void write(ByteBuffer data, long offset) throws IOException {
+        if (offset + data.remaining() > length) {
+            throw new IOException("Write beyond end of thumbnail segment " + file + ": " + (offset + data.remaining()) + " > " + length);
+        }
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Discards everything after the given length, used to remove a partially written record after a crash.
+     */
+    void truncate(long newLength) throws IOException {
+        if (sealed) {
+            throw new IOException("Cannot truncate sealed thumbnail segment " + file);
+        }
+        channel.truncate(newLength);
+        length = newLength;
+    }
+
+    /**
+     * Stops appending to the segment and maps it into memory.
+     */
+    synchronized void seal() throws IOException {
+        if (sealed) {
+            return;
+        }
+        if (length > 0) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        sealed = true;
+    }
+
+    /**
+     * @return a read-only view of the given range of the segment.
+     */
+    ByteBuffer slice(long offset, int sliceLength) throws IOException {
+        if (offset < 0 || sliceLength < 0 || offset + sliceLength > length) {
+            throw new IOException("Read beyond end of thumbnail segment " + file + ": " + (offset + sliceLength) + " > " + length);
+        }
+
+        final MappedByteBuffer current = mapping;
+        if (current == null) {
+            return read(offset, sliceLength);
+        }
+
+        final ByteBuffer view = current.duplicate();
+        view.position((int) offset);
+        view.limit((int) offset + sliceLength);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private ByteBuffer read(long offset, int readLength) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(readLength);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of thumbnail segment " + file + " at " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Closes the file. Thumbnails that are still being served from the segment remain readable, as the mapping of a
+     * sealed segment stays valid and records of an unsealed segment have been copied when they were read.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,51 @@
+package de.yanwittmann.gallery.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Identifies the content of a file by an {@link XxHash64} over its size and its first and last block, so that the cost
+ * does not depend on the size of the file. Files with the same fingerprint are taken to have the same content; media
+ * files that differ only in the middle but have the same size, header and end are not expected in practice.
+ */
+public class ContentFingerprint {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * @param file the file to fingerprint.
+     * @param size the size of the file, as already read from its attributes.
+     * @return the fingerprint of the file.
+     */
+    public static long compute(Path file, long size) throws IOException {
+        final int headLength = (int) Math.min(size, BLOCK_SIZE);
+        final int tailLength = (int) Math.min(size - headLength, BLOCK_SIZE);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + headLength + tailLength);
+        buffer.putLong(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            readFully(channel, buffer, 0, headLength);
+            readFully(channel, buffer, size - tailLength, tailLength);
+        }
+        buffer.flip();
+
+        return XxHash64.hash(buffer, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.limit(buffer.position() + length);
+        long filePosition = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                throw new EOFException("File is shorter than its size, it has been changed whilst reading it");
+            }
+            filePosition += read;
+        }
+        buffer.limit(buffer.capacity());
+    }
+}
@@ -0,0 +1,242 @@
+package de.yanwittmann.gallery.util;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.MimeTypeUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes a file or byte ranges of it to a servlet response, as described in RFC 7233.
+ * <p>
+ * Whole files and single ranges are handed to the servlet container via the Tomcat sendfile attributes if it supports
+ * them, in which case the container transfers the file to the socket without copying it through the application.
+ * Otherwise, and for multipart responses, the file is transferred with {@link FileChannel#transferTo}, so the memory
+ * used is independent of the file size.
+ */
+public class FileRangeWriter {
+
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Writes the requested ranges of the file, or the whole file if no or an outdated range was requested.
+     * <p>
+     * Overlapping and adjacent ranges are merged, so that no byte is written twice. If the requested ranges add up to
+     * more than the file, the whole file is written instead. Requests with more than 100 ranges are rejected as not
+     * satisfiable by {@link HttpRange#parseRanges(String)}.
+     *
+     * @param file        the file to write.
+     * @param contentType the content type of the file.
+     * @param eTag        the entity tag of the file, used to evaluate {@code If-Range}.
+     * @param lastEdited  the last modification time of the file, used to evaluate {@code If-Range}.
+     */
+    public static void write(File file, String contentType, String eTag, long lastEdited,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final long length = file.length();
+        final boolean writeBody = !"HEAD".equalsIgnoreCase(request.getMethod());
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        final String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !isRangeApplicable(request, eTag, lastEdited)) {
+            writeWhole(file, contentType, length, writeBody, request, response);
+            return;
+        }
+
+        final List<ByteRange> ranges = new ArrayList<>();
+        long requestedLength = 0;
+        try {
+            for (HttpRange range : HttpRange.parseRanges(rangeHeader)) {
+                final long start = range.getRangeStart(length);
+                final long end = range.getRangeEnd(length);
+                if (start >= length || start > end) {
+                    throw new IllegalArgumentException("Range not satisfiable: " + range);
+                }
+                ranges.add(new ByteRange(start, end));
+                requestedLength += end - start + 1;
+            }
+        } catch (IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+
+        if (ranges.isEmpty() || requestedLength > length) {
+            writeWhole(file, contentType, length, writeBody, request, response);
+            return;
+        }
+
+        final List<ByteRange> merged = merge(ranges);
+        if (merged.size() == 1) {
+            writeSingleRange(file, contentType, length, merged.get(0), writeBody, request, response);
+        } else {
+            writeMultipleRanges(file, contentType, length, merged, writeBody, response);
+        }
+    }
+
+    /**
+     * A range of bytes of a file, with an inclusive end.
+     */
+    private static class ByteRange {
+        private final long start;
+        private final long end;
+
+        private ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private long getLength() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges and sorts them by their start.
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        final List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(range -> range.start));
+
+        final List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            final ByteRange next = sorted.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * A range request only applies if the {@code If-Range} header is missing or still matches the file, otherwise the
+     * client holds an outdated version and needs the whole file.
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastEdited) {
+        final String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastEdited / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void writeWhole(File file, String contentType, long length, boolean writeBody,
+                                   HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(contentType);
+        response.setContentLengthLong(length);
+        if (writeBody) {
+            transfer(file, 0, length, request, response);
+        }
+    }
+
+    private static void writeSingleRange(File file, String contentType, long length, ByteRange range, boolean writeBody,
+                                         HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final long start = range.start;
+        final long end = range.end;
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType(contentType);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        response.setContentLengthLong(end - start + 1);
+        if (writeBody) {
+            transfer(file, start, end - start + 1, request, response);
+        }
+    }
+
+    private static void writeMultipleRanges(File file, String contentType, long length, List<ByteRange> ranges, boolean writeBody,
+                                            HttpServletResponse response) throws IOException {
+        final String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+
+        final byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            final long start = ranges.get(i).start;
+            final long end = ranges.get(i).end;
+            partHeaders[i] = (CRLF + "--" + boundary + CRLF +
+                              HttpHeaders.CONTENT_TYPE + ": " + contentType + CRLF +
+                              HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + CRLF +
+                              CRLF).getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + end - start + 1;
+        }
+        final byte[] closingBoundary = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType(MULTIPART_BYTERANGES + "; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (!writeBody) {
+            return;
+        }
+
+        final OutputStream output = response.getOutputStream();
+        final WritableByteChannel target = Channels.newChannel(output);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                output.write(partHeaders[i]);
+                transferTo(channel, ranges.get(i).start, ranges.get(i).getLength(), target);
+            }
+        }
+        output.write(closingBoundary);
+        output.flush();
+    }
+
+    private static void transfer(File file, long start, long count, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            // the container sends the file after the request has been handled, nothing must be written to the response
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, start + count);
+            return;
+        }
+
+        final OutputStream output = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transferTo(channel, start, count, Channels.newChannel(output));
+        }
+        output.flush();
+    }
+
+    private static void transferTo(FileChannel channel, long start, long count, WritableByteChannel target) throws IOException {
+        long position = start;
+        final long end = start + count;
+        while (position < end) {
+            final long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("File ended before the requested range was transferred");
+            }
+            position += transferred;
+        }
+    }
+}
@@ -5,42 +5,43 @@ import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.Java2DFrameConverter;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 
 public class ImageUtil {
 
-    private static final long MAX_THUMB_AGE = TimeUnit.MINUTES.toMillis(5);
-    private static final long DELETE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
-    //private static final long MAX_THUMB_AGE = TimeUnit.SECONDS.toMillis(10);
-    //private static final long DELETE_INTERVAL = TimeUnit.SECONDS.toMillis(2);
-
-    public static void initializeThumbnailCleanup(File directoryPath) {
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            final File[] files = directoryPath.listFiles();
-            if (files == null) return;
-            long now = System.currentTimeMillis();
-
-            for (File file : files) {
-                try {
-                    BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
-                    long fileTime = attrs.creationTime().toMillis();
-                    if (now - fileTime > MAX_THUMB_AGE) {
-                        Files.delete(file.toPath());
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, DELETE_INTERVAL, DELETE_INTERVAL, TimeUnit.MILLISECONDS);
-    }
+    /**
+     * Images are decoded with subsampling down to at most this factor of the thumbnail size. Decoding slightly larger
+     * than needed and scaling down afterwards avoids the aliasing of decoding directly to the target size.
+     */
+    private static final int DECODE_OVERSAMPLING = 2;
+
+    private static final int JPEG_MARKER_SOI = 0xD8;
+    private static final int JPEG_MARKER_SOS = 0xDA;
+    private static final int JPEG_MARKER_EOI = 0xD9;
+    private static final int JPEG_MARKER_APP1 = 0xE1;
+
+    private static final int EXIF_TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int EXIF_TAG_THUMBNAIL_LENGTH = 0x0202;
 
     public static BufferedImage extractFirstFrameFromVideo(final File videoFile) throws FrameGrabber.Exception {
         final FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(videoFile);
@@ -54,52 +55,285 @@ public class ImageUtil {
         return bufferedImage;
     }
 
-    public static File createThumbnail(File originalFile, File thumbnailFile, int maxSize) throws IOException {
-        try {
-            if (thumbnailFile.exists()) {
-                return thumbnailFile;
+    /**
+     * Reads the image a thumbnail of the given size is created from, which is the first frame for videos.
+     *
+     * @param video whether the file is a video, as determined when it was indexed.
+     */
+    public static BufferedImage readThumbnailSource(File originalFile, int maxSize, boolean video) throws IOException {
+        if (video) {
+            final BufferedImage frame;
+            try {
+                frame = extractFirstFrameFromVideo(originalFile);
+            } catch (FrameGrabber.Exception e) {
+                throw new IOException("Failed to extract thumbnail from video file: " + originalFile.getAbsolutePath(), e);
+            }
+            if (frame == null) {
+                throw new IOException("Video file does not contain any frames: " + originalFile.getAbsolutePath());
             }
+            return frame;
+        }
+
+        final BufferedImage image = readImageForThumbnail(originalFile, maxSize);
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + originalFile.getAbsolutePath());
+        }
+        return image;
+    }
+
+    /**
+     * Writes the image as JPEG with the given compression quality. Any alpha channel is dropped.
+     *
+     * @param quality the compression quality between 0 and 1.
+     */
+    public static void writeJpeg(BufferedImage image, OutputStream output, float quality) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available");
+        }
+
+        final BufferedImage rgbImage = image.getType() == BufferedImage.TYPE_INT_RGB ? image : toRgb(image);
+        final ImageWriter writer = writers.next();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(rgbImage, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        final BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = rgbImage.createGraphics();
+        g.drawImage(image, 0, 0, Color.WHITE, null);
+        g.dispose();
+        return rgbImage;
+    }
 
-            BufferedImage originalImage;
-            if (originalFile.getName().endsWith(".mp4") || originalFile.getName().endsWith(".mov")) {
-                try {
-                    originalImage = extractFirstFrameFromVideo(originalFile);
-                } catch (FrameGrabber.Exception e) {
-                    throw new RuntimeException("Failed to extract thumbnail from video file: " + originalFile.getAbsolutePath(), e);
+    /**
+     * @return whether any pixel of the image is not fully opaque.
+     */
+    public static boolean hasTransparency(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return false;
+        }
+        final int width = image.getWidth();
+        final int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int pixel : row) {
+                if ((pixel >>> 24) != 0xFF) {
+                    return true;
                 }
-            } else {
-                originalImage = ImageIO.read(originalFile);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads an image with just enough resolution to create a thumbnail of the given size from it, so that the memory
+     * used does not depend on the resolution of the original image. The image is decoded with source subsampling,
+     * skipping pixel rows and columns that would be discarded by scaling anyway. If no reader supports the format, the
+     * full image is read.
+     * <p>
+     * Callers that can make do with the thumbnail embedded in the EXIF data should try
+     * {@link #readExifThumbnail(File)} first.
+     *
+     * @param imageFile the image to read.
+     * @param maxSize   the maximum width and height of the thumbnail that will be created.
+     * @return the image, which may be larger than the requested size, but not by more than a small factor.
+     */
+    public static BufferedImage readImageForThumbnail(File imageFile, int maxSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            final Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return ImageIO.read(imageFile);
             }
 
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                final int subsampling = Math.max(1, longestSide / (maxSize * DECODE_OVERSAMPLING));
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
 
-            int width = originalImage.getWidth();
-            int height = originalImage.getHeight();
+    /**
+     * Reads the dimensions of an image from its header, without decoding the pixel data.
+     *
+     * @param imageFile the image to read.
+     * @return the width and height of the image, or null if no reader supports the format.
+     */
+    public static Dimension readImageDimensions(File imageFile) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            final Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
 
-            if (width > maxSize) {
-                height = (int) (height * ((double) maxSize / width));
-                width = maxSize;
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
             }
+        }
+    }
+
+    /**
+     * Scales the image so that neither side exceeds the given size, keeping the aspect ratio. Images that are more than
+     * twice as large as the target size are halved in several steps first, as a single bilinear step would skip most
+     * source pixels and produce a noisy thumbnail.
+     */
+    public static BufferedImage scaleDown(BufferedImage image, int maxSize) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (width > maxSize) {
+            height = (int) (height * ((double) maxSize / width));
+            width = maxSize;
+        }
 
-            if (height > maxSize) {
-                width = (int) (width * ((double) maxSize / height));
-                height = maxSize;
+        if (height > maxSize) {
+            width = (int) (width * ((double) maxSize / height));
+            height = maxSize;
+        }
+
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = resize(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+
+        if (current.getWidth() == width && current.getHeight() == height) {
+            return current;
+        }
+        return resize(current, width, height);
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        final int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage resized = new BufferedImage(width, height, type);
+        final Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return resized;
+    }
+
+    /**
+     * Reads the thumbnail that cameras embed in the EXIF data of JPEG images (IFD1 of the APP1 segment).
+     *
+     * @return the embedded thumbnail, or null if the file is no JPEG or does not contain one.
+     */
+    public static BufferedImage readExifThumbnail(File imageFile) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(imageFile)))) {
+            if (input.readUnsignedByte() != 0xFF || input.readUnsignedByte() != JPEG_MARKER_SOI) {
+                return null;
             }
 
-            BufferedImage thumbnailImage = new BufferedImage(width, height, originalImage.getType());
-            Graphics2D g = thumbnailImage.createGraphics();
-            g.drawImage(originalImage, 0, 0, width, height, null);
-            g.dispose();
+            while (true) {
+                if (input.readUnsignedByte() != 0xFF) {
+                    return null;
+                }
+                int marker = input.readUnsignedByte();
+                while (marker == 0xFF) {
+                    marker = input.readUnsignedByte();
+                }
+                if (marker == JPEG_MARKER_SOS || marker == JPEG_MARKER_EOI) {
+                    return null;
+                }
+
+                final int length = input.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker != JPEG_MARKER_APP1) {
+                    input.skipBytes(length);
+                    continue;
+                }
+
+                final byte[] segment = new byte[length];
+                input.readFully(segment);
+                final BufferedImage thumbnail = readExifThumbnail(segment);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // a corrupt EXIF segment only means that the full image has to be decoded
+            return null;
+        }
+    }
 
-            if (!thumbnailFile.getParentFile().exists()) {
-                thumbnailFile.getParentFile().mkdirs();
+    private static BufferedImage readExifThumbnail(byte[] segment) throws IOException {
+        final byte[] exifHeader = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        if (segment.length < exifHeader.length + 8) {
+            return null;
+        }
+        for (int i = 0; i < exifHeader.length; i++) {
+            if (segment[i] != exifHeader[i]) {
+                return null;
             }
+        }
+
+        // offsets in the TIFF structure are relative to its header, which directly follows the EXIF header
+        final ByteBuffer tiff = ByteBuffer.wrap(segment, exifHeader.length, segment.length - exifHeader.length).slice();
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+
+        final int ifd0 = tiff.getInt(4);
+        if (ifd0 <= 0 || ifd0 + 2 > tiff.limit()) {
+            return null;
+        }
+        final int ifd0Entries = tiff.getShort(ifd0) & 0xFFFF;
+        final int ifd1Pointer = ifd0 + 2 + ifd0Entries * 12;
+        if (ifd1Pointer + 4 > tiff.limit()) {
+            return null;
+        }
+        final int ifd1 = tiff.getInt(ifd1Pointer);
+        if (ifd1 <= 0 || ifd1 + 2 > tiff.limit()) {
+            return null;
+        }
 
-            ImageIO.write(thumbnailImage, "png", thumbnailFile);
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        final int ifd1Entries = tiff.getShort(ifd1) & 0xFFFF;
+        for (int i = 0; i < ifd1Entries; i++) {
+            final int entry = ifd1 + 2 + i * 12;
+            if (entry + 12 > tiff.limit()) {
+                return null;
+            }
+            final int tag = tiff.getShort(entry) & 0xFFFF;
+            if (tag == EXIF_TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = tiff.getInt(entry + 8);
+            } else if (tag == EXIF_TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = tiff.getInt(entry + 8);
+            }
+        }
 
-        } catch (Exception e) {
-            Files.copy(originalFile.toPath(), thumbnailFile.toPath());
+        if (thumbnailOffset <= 0 || thumbnailLength <= 0 || thumbnailOffset + thumbnailLength > tiff.limit()) {
+            return null;
         }
 
-        return thumbnailFile;
+        return ImageIO.read(new ByteArrayInputStream(segment, exifHeader.length + thumbnailOffset, thumbnailLength));
     }
 }
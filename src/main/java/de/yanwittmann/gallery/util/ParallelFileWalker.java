@@ -0,0 +1,271 @@
+package de.yanwittmann.gallery.util;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Walks a file tree on a fork/join pool, with one task per directory. Every subdirectory is forked as a task of its
+ * own, so idle threads steal directories from busy ones at any depth of the tree, and a single large directory does
+ * not leave the other threads idle.
+ * <p>
+ * Forked directory tasks are bounded: once too many directories are waiting to be walked, further subdirectories are
+ * walked by the thread that found them instead. Symbolic links to files are visited, links to directories are not
+ * followed.
+ * <p>
+ * Entries that are removed whilst the tree is walked or that cannot be accessed are skipped and counted, including
+ * whole subdirectories. Any other exception thrown while listing a directory, as well as any exception thrown while
+ * listing the root or by the consumer, stops the walk and is rethrown by {@link #walk(Path)} once all directories that
+ * were being walked have stopped, so the consumer is never called after {@code walk} has returned. A walker walks a
+ * single tree and can be cancelled from any thread.
+ */
+public class ParallelFileWalker {
+
+    /**
+     * The amount of threads trees are walked with by default: more threads than cores do not walk a tree any faster.
+     */
+    public static final int DEFAULT_PARALLELISM = Math.min(8, Runtime.getRuntime().availableProcessors());
+
+    private static final int MAX_IN_FLIGHT_PER_THREAD = 64;
+
+    private final Predicate<Path> fileFilter;
+    private final Predicate<Path> dirFilter;
+    private final BiConsumer<Path, BasicFileAttributes> consumer;
+    private final int parallelism;
+    private final int maxInFlight;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    /**
+     * @param fileFilter  the files to pass to the consumer.
+     * @param dirFilter   the directories to descend into, the root is always walked.
+     * @param consumer    receives every file that matches the filter together with its attributes, concurrently from
+     *                    several threads.
+     * @param parallelism the amount of threads to walk the tree with.
+     */
+    public ParallelFileWalker(Predicate<Path> fileFilter, Predicate<Path> dirFilter, BiConsumer<Path, BasicFileAttributes> consumer, int parallelism) {
+        this.fileFilter = fileFilter;
+        this.dirFilter = dirFilter;
+        this.consumer = consumer;
+        this.parallelism = parallelism;
+        this.maxInFlight = parallelism * MAX_IN_FLIGHT_PER_THREAD;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final Path directory;
+        private final boolean root;
+
+        private DirectoryTask(Path directory, boolean root) {
+            this.directory = directory;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            final List<DirectoryTask> forked = new ArrayList<>();
+            try {
+                walkDirectory(directory, forked, root);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                // the forked tasks are joined even if the walk has failed, so that no consumer call outlives the walk
+                // newest first, so that tasks that have not been stolen yet are taken back from the own queue
+                for (int i = forked.size() - 1; i >= 0; i--) {
+                    forked.get(i).join();
+                }
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void walkDirectory(Path directory, List<DirectoryTask> forked, boolean root) throws IOException {
+        directories.incrementAndGet();
+
+        final DirectoryStream<Path> entries;
+        try {
+            entries = Files.newDirectoryStream(directory);
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            if (root) {
+                throw e;
+            }
+            skipped.incrementAndGet();
+            return;
+        }
+
+        try (entries) {
+            for (Path entry : entries) {
+                if (isStopped()) {
+                    return;
+                }
+
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException | AccessDeniedException e) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                if (attributes.isSymbolicLink()) {
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // broken link
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        continue;
+                    }
+                }
+
+                if (attributes.isDirectory()) {
+                    if (!dirFilter.test(entry)) {
+                        continue;
+                    }
+                    if (inFlight.incrementAndGet() <= maxInFlight) {
+                        final DirectoryTask task = new DirectoryTask(entry, false);
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        inFlight.decrementAndGet();
+                        walkDirectory(entry, forked, false);
+                    }
+                } else if (attributes.isRegularFile()) {
+                    files.incrementAndGet();
+                    if (fileFilter.test(entry)) {
+                        consumer.accept(entry, attributes);
+                    }
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            // the directory has been removed or become inaccessible whilst its entries were listed
+            if (!root && (e.getCause() instanceof NoSuchFileException || e.getCause() instanceof AccessDeniedException)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            throw e.getCause();
+        }
+    }
+
+    private boolean isStopped() {
+        return cancelled || failure.get() != null;
+    }
+
+    /**
+     * Walks the tree below the root directory and blocks until all matching files have been passed to the consumer.
+     *
+     * @throws CancellationException if the walk has been cancelled before it was completed.
+     */
+    public void walk(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+
+        startTime = System.currentTimeMillis();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            inFlight.incrementAndGet();
+            pool.invoke(new DirectoryTask(root, true));
+        } finally {
+            pool.shutdown();
+            endTime = System.currentTimeMillis();
+        }
+
+        final Throwable e = failure.get();
+        if (e instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e).getCause();
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+
+        if (cancelled) {
+            throw new CancellationException("Walk of " + root + " has been cancelled");
+        }
+    }
+
+    /**
+     * Stops the walk as soon as the directories that are currently being walked have reached their next entry.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getDirectories() {
+        return directories.get();
+    }
+
+    /**
+     * @return the amount of files and directories that have been skipped, as they have been removed whilst the tree was
+     * walked or could not be accessed.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    private double getElapsedSeconds() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return ((endTime == 0 ? System.currentTimeMillis() : endTime) - startTime) / 1000.0;
+    }
+
+    public JSONObject toJson() {
+        final double elapsedSeconds = getElapsedSeconds();
+        return new JSONObject()
+                .put("files", getFiles())
+                .put("directories", getDirectories())
+                .put("skipped", getSkipped())
+                .put("filesPerSecond", elapsedSeconds > 0 ? getFiles() / elapsedSeconds : 0)
+                .put("directoriesPerSecond", elapsedSeconds > 0 ? getDirectories() / elapsedSeconds : 0)
+                .put("seconds", elapsedSeconds)
+                .put("cancelled", cancelled);
+    }
+
+    @Override
+    public String toString() {
+        final double elapsedSeconds = getElapsedSeconds();
+        return String.format("%d files in %d directories in %.1fs (%.0f files/s, %.0f directories/s, %d skipped)",
+                getFiles(), getDirectories(), elapsedSeconds,
+                elapsedSeconds > 0 ? getFiles() / elapsedSeconds : 0, elapsedSeconds > 0 ? getDirectories() / elapsedSeconds : 0, getSkipped());
+    }
+}
@@ -0,0 +1,90 @@
+package de.yanwittmann.gallery.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 64-bit variant of the xxHash algorithm by Yann Collet, a fast non-cryptographic hash function with a good
+ * distribution, see <a href="https://github.com/Cyan4973/xxHash">github.com/Cyan4973/xxHash</a>.
+ */
+public class XxHash64 {
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    public static long hash(String string) {
+        return hash(string.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    public static long hash(byte[] data, long seed) {
+        return hash(ByteBuffer.wrap(data), seed);
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer, without changing its position.
+     */
+    public static long hash(ByteBuffer data, long seed) {
+        final ByteBuffer buffer = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int length = buffer.remaining();
+
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME_1 + PRIME_2;
+            long v2 = seed + PRIME_2;
+            long v3 = seed;
+            long v4 = seed - PRIME_1;
+
+            while (buffer.remaining() >= 32) {
+                v1 = round(v1, buffer.getLong());
+                v2 = round(v2, buffer.getLong());
+                v3 = round(v3, buffer.getLong());
+                v4 = round(v4, buffer.getLong());
+            }
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME_5;
+        }
+
+        hash += length;
+
+        while (buffer.remaining() >= 8) {
+            hash ^= round(0, buffer.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (buffer.remaining() >= 4) {
+            hash ^= (buffer.getInt() & 0xFFFFFFFFL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+        }
+        while (buffer.hasRemaining()) {
+            hash ^= (buffer.get() & 0xFF) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME_1 + PRIME_4;
+    }
+}
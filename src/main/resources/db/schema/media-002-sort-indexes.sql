@@ -0,0 +1,2 @@
+CREATE INDEX IF NOT EXISTS "media_last_edited_file" ON "media" ("last_edited", "file");
+CREATE INDEX IF NOT EXISTS "media_file_last_edited" ON "media" ("file", "last_edited");
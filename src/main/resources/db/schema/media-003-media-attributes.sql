@@ -0,0 +1,7 @@
+ALTER TABLE "media" ADD COLUMN "size_bytes" INTEGER;
+ALTER TABLE "media" ADD COLUMN "width" INTEGER;
+ALTER TABLE "media" ADD COLUMN "height" INTEGER;
+ALTER TABLE "media" ADD COLUMN "media_type" TEXT;
+ALTER TABLE "media" ADD COLUMN "extension" TEXT;
+CREATE INDEX IF NOT EXISTS "media_media_type_last_edited_file" ON "media" ("media_type", "last_edited", "file");
+CREATE INDEX IF NOT EXISTS "media_media_type_file_last_edited" ON "media" ("media_type", "file", "last_edited");
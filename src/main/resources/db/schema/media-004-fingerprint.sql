@@ -0,0 +1,2 @@
+ALTER TABLE "media" ADD COLUMN "fingerprint" INTEGER;
+CREATE INDEX IF NOT EXISTS "media_fingerprint" ON "media" ("fingerprint");
@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS "media_base_path_hash" ON "media" ("base_path_hash");
@@ -69,7 +69,7 @@ function loadPage(page, scrollIntoView = false) {
     }
     console.log(`Loading page ${page}...`)
 
-    axios.get(`/media/page/${page}/${orderBy}/${orderAsc}/${orderByIncludeVideos}`)
+    axios.get(`/media/page/${page}/${orderBy}/${orderAsc}/${orderByIncludeVideos}?metadata=true`)
         .then(response => {
             // find where to insert the new items by finding the last element with the page number 1 less than the current page
             let insertAfter = null;
@@ -94,12 +94,22 @@ function loadPage(page, scrollIntoView = false) {
 
             insertAfter = insertAfter || galleryItemContainers[galleryItemContainers.length - 1] || null;
 
+            const metadataById = {};
+            (response.data.media || []).forEach(media => metadataById[media.id] = media);
+
             let addedItems = [];
             response.data.ids.forEach(id => {
                 const placeholder = document.createElement('div');
                 placeholder.className = 'gallery-item-container';
                 placeholder.dataset.id = id;
                 placeholder.dataset.page = page;
+                const metadata = metadataById[id];
+                if (metadata) {
+                    placeholder.dataset.version = metadata.version;
+                    if (metadata.type === 'vid') {
+                        placeholder.classList.add('video');
+                    }
+                }
                 placeholder.style.height = `${Math.round(thumbnailSize / 1.7)}px`;
                 imageObserver.observe(placeholder);
                 addedItems.push(placeholder);
@@ -298,19 +308,13 @@ function loadImage(placeholder) {
 
     const id = placeholder.dataset.id;
     const img = document.createElement('img');
-    img.src = `/media/get/${id}/thumb/${thumbnailSize}`;
+    const version = placeholder.dataset.version;
+    img.src = version ? `/media/get/${id}/thumb/${thumbnailSize}?v=${version}` : `/media/get/${id}/thumb/${thumbnailSize}`;
     img.onload = () => {
         placeholder.style.height = 'auto';
         img.onclick = () => {
             showFullSizeImage(placeholder);
         };
-
-        axios.get(`/media/get/${id}/type`)
-            .then(response => {
-                if (response.data.type === 'vid') {
-                    placeholder.classList.add('video');
-                }
-            });
     };
     img.onerror = (error) => {
         console.error(`Error loading image with ID ${id}:`, error);
@@ -460,6 +464,7 @@ function showLargeImageMetadata(id = currentlyActiveFullscreenImageId) {
             addRow('Filename', response.data.filename, "code");
             addRow('Path', response.data.path, "code");
             addRow('Size', response.data.size);
+            addRow('Dimensions', response.data.dimensions);
             addRow('Last Modified', response.data.lastModified);
 
             openMediaMetadataModal();
@@ -0,0 +1,94 @@
+package de.yanwittmann.gallery.db.dao;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JdbcBatchInserterTest {
+
+    @TempDir
+    Path directory;
+
+    private MediaTable mediaTable;
+
+    @BeforeEach
+    void useTemporaryDatabase() {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db.sqlite").toFile()));
+        mediaTable = new MediaTable();
+        mediaTable.createSchema();
+    }
+
+    private static MediaRow row(int index) {
+        final String file = "/photos/IMG_" + index + ".jpg";
+        final MediaRow row = new MediaRow();
+        row.setId(MediaRow.calculateId(file, 0));
+        row.setFile(file);
+        row.setLastEdited(new Timestamp(1_600_000_000_000L));
+        row.setBasePathHash(1L);
+        return row;
+    }
+
+    @Test
+    void commitsRowsOfSlowProducerWithoutFullBatch() throws SQLException, InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        try (JdbcBatchInserter<MediaRow> inserter = mediaTable.batchInserter(100, 1000, row -> written.countDown())) {
+            inserter.add(row(1));
+
+            // the row is committed without further rows or closing the inserter
+            assertTrue(written.await(3, TimeUnit.SECONDS));
+            assertEquals(1, mediaTable.count());
+
+            // the counters are updated once the listener has been called for the whole batch
+            inserter.close();
+            assertEquals(1, inserter.getInserted());
+        }
+    }
+
+    @Test
+    void commitsAllRowsOnClose() throws SQLException {
+        final List<MediaRow> written = new CopyOnWriteArrayList<>();
+        final JdbcBatchInserter<MediaRow> inserter = mediaTable.batchInserter(10, 25, written::add);
+        for (int i = 0; i < 110; i++) {
+            inserter.add(row(i));
+        }
+        inserter.close();
+
+        assertEquals(110, inserter.getInserted());
+        assertEquals(110, written.size());
+        assertEquals(110, mediaTable.count());
+        assertThrows(IllegalStateException.class, () -> inserter.add(row(200)));
+    }
+
+    @Test
+    void updatesExistingRowsInUpsertMode() throws SQLException {
+        try (JdbcBatchInserter<MediaRow> inserter = mediaTable.batchInserter(10, 10)) {
+            inserter.add(row(1));
+        }
+
+        final MediaRow changed = row(1);
+        changed.setLastEdited(new Timestamp(1_700_000_000_000L));
+        try (JdbcBatchInserter<MediaRow> upserter = mediaTable.batchUpserter(10, 10)) {
+            upserter.add(changed);
+            upserter.add(row(2));
+        }
+
+        assertEquals(2, mediaTable.count());
+        assertEquals(1_700_000_000_000L, mediaTable.getByPrimaryKey(changed.getId()).get().getLastEdited().getTime());
+    }
+}
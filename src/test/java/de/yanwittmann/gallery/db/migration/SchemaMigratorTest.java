@@ -0,0 +1,122 @@
+package de.yanwittmann.gallery.db.migration;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaMigratorTest {
+
+    private static final String TABLE = "migrated";
+
+    @TempDir
+    Path directory;
+
+    private final List<Integer> applied = new ArrayList<>();
+
+    @BeforeEach
+    void useTemporaryDatabase() {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db.sqlite").toFile()));
+    }
+
+    private SchemaMigration migration(int version, String sql) {
+        return SchemaMigration.of(version, "test " + version, connection -> {
+            applied.add(version);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            }
+        });
+    }
+
+    private List<SchemaMigration> migrations() {
+        // deliberately out of order, the later migrations depend on the earlier ones
+        return Arrays.asList(
+                migration(3, "CREATE INDEX migrated_name ON " + TABLE + " (name)"),
+                migration(1, "CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY)"),
+                migration(2, "ALTER TABLE " + TABLE + " ADD COLUMN name TEXT")
+        );
+    }
+
+    private static int getVersion() throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
+            return SchemaMigrator.getVersion(connection, TABLE);
+        }
+    }
+
+    private static boolean exists(String type, String name) throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = '" + type + "' AND name = '" + name + "'")) {
+            return resultSet.next();
+        }
+    }
+
+    @Test
+    void appliesMigrationsInVersionOrder() throws SQLException {
+        assertEquals(3, SchemaMigrator.migrate(TABLE, migrations()));
+
+        assertEquals(Arrays.asList(1, 2, 3), applied);
+        assertEquals(3, getVersion());
+        assertTrue(exists("index", "migrated_name"));
+    }
+
+    @Test
+    void appliesEveryMigrationOnlyOnce() throws SQLException {
+        SchemaMigrator.migrate(TABLE, migrations());
+        applied.clear();
+
+        assertEquals(3, SchemaMigrator.migrate(TABLE, migrations()));
+        assertEquals(Collections.emptyList(), applied);
+    }
+
+    @Test
+    void appliesOnlyNewerMigrations() throws SQLException {
+        SchemaMigrator.migrate(TABLE, migrations().subList(1, 3));
+        assertEquals(2, getVersion());
+        applied.clear();
+
+        assertEquals(3, SchemaMigrator.migrate(TABLE, migrations()));
+        assertEquals(Collections.singletonList(3), applied);
+    }
+
+    @Test
+    void rollsBackFailedMigration() throws SQLException {
+        final List<SchemaMigration> migrations = Arrays.asList(
+                migration(1, "CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY)"),
+                SchemaMigration.of(2, "failing", connection -> {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("CREATE TABLE half_done (id INTEGER)");
+                        statement.execute("THIS IS NOT SQL");
+                    }
+                })
+        );
+
+        assertThrows(SQLException.class, () -> SchemaMigrator.migrate(TABLE, migrations));
+        assertEquals(1, getVersion());
+        assertTrue(exists("table", TABLE));
+        assertFalse(exists("table", "half_done"));
+    }
+
+    @Test
+    void resetVersionStartsOver() throws SQLException {
+        SchemaMigrator.migrate(TABLE, migrations());
+        SchemaMigrator.resetVersion(TABLE);
+        assertEquals(0, getVersion());
+    }
+}
@@ -0,0 +1,40 @@
+package de.yanwittmann.gallery.media;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MediaCursorTest {
+
+    @Test
+    void decodesEncodedCursor() {
+        final MediaCursor cursor = new MediaCursor(1_600_000_000_123L, "/photos/2020/Ürlaub & Strand/IMG_0001.jpg", -4_611_686_018_427_387_904L);
+
+        final String encoded = cursor.encode();
+        final MediaCursor decoded = MediaCursor.decode(encoded);
+
+        assertEquals(cursor.getLastEdited(), decoded.getLastEdited());
+        assertEquals(cursor.getFile(), decoded.getFile());
+        assertEquals(cursor.getId(), decoded.getId());
+    }
+
+    @Test
+    void encodesUrlSafeWithoutPadding() {
+        final String encoded = new MediaCursor(0, "/??>>/a", Long.MAX_VALUE).encode();
+
+        assertFalse(encoded.contains("+"));
+        assertFalse(encoded.contains("/"));
+        assertFalse(encoded.contains("="));
+    }
+
+    @Test
+    void rejectsMalformedCursors() {
+        assertThrows(IllegalArgumentException.class, () -> MediaCursor.decode("not base64!"));
+        // valid Base64, but not a JSON object
+        assertThrows(IllegalArgumentException.class, () -> MediaCursor.decode("aGVsbG8"));
+        // a JSON object without the id: {"d":1,"f":"a"}
+        assertThrows(IllegalArgumentException.class, () -> MediaCursor.decode("eyJkIjoxLCJmIjoiYSJ9"));
+    }
+}
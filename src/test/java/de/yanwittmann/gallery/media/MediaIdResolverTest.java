@@ -0,0 +1,164 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.config.ConfigField;
+import de.yanwittmann.gallery.media.config.MediaServiceConfiguration;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MediaIdResolverTest {
+
+    private static final long BASE_PATH_HASH = 42;
+    private static final String FILE = "/photos/IMG_0001.jpg";
+
+    @TempDir
+    Path directory;
+
+    private MediaService mediaService;
+    private MediaTable mediaTable;
+
+    @BeforeEach
+    void createMediaService() throws IOException {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db/db.sqlite").toFile()));
+
+        final Path configFile = directory.resolve("config.json");
+        Files.write(configFile, new JSONObject()
+                .put(ConfigField.INDEX_ON_STARTUP.getKey(), false)
+                .put(ConfigField.IN_MEMORY_INDEX.getKey(), false)
+                .toString().getBytes(StandardCharsets.UTF_8));
+        mediaService = new MediaService(MediaServiceConfiguration.fromConfigFile(configFile.toFile()), mediaRow -> {
+        });
+        mediaTable = new MediaTable();
+    }
+
+    private void insert(long id, String file, long basePathHash) throws SQLException {
+        final MediaRow row = new MediaRow();
+        row.setId(id);
+        row.setFile(file);
+        row.setLastEdited(new Timestamp(1_600_000_000_000L));
+        row.setBasePathHash(basePathHash);
+        row.setSizeBytes(100L);
+        mediaTable.insert(row);
+    }
+
+    /**
+     * Creates one resolver that looks the candidates up in the media table and one that uses the sorted ids.
+     */
+    private List<MediaIdResolver> resolvers() throws SQLException {
+        final List<MediaIdResolver> resolvers = new ArrayList<>();
+        resolvers.add(new MediaIdResolver(mediaService, mediaTable, BASE_PATH_HASH, null));
+        resolvers.add(new MediaIdResolver(mediaService, mediaTable, BASE_PATH_HASH, mediaTable.getAllIds()));
+        return resolvers;
+    }
+
+    @Test
+    void assignsRegularIdToNewFile() throws SQLException {
+        for (MediaIdResolver resolver : resolvers()) {
+            assertEquals(MediaRow.calculateId(FILE, 0), resolver.resolve(FILE, new HashMap<>()));
+        }
+    }
+
+    @Test
+    void probesIdTakenByAnotherFile() throws SQLException {
+        insert(MediaRow.calculateId(FILE, 0), "/photos/other.jpg", BASE_PATH_HASH);
+        insert(MediaRow.calculateId(FILE, 1), "/photos/another.jpg", BASE_PATH_HASH);
+
+        for (MediaIdResolver resolver : resolvers()) {
+            assertEquals(MediaRow.calculateId(FILE, 2), resolver.resolve(FILE, new HashMap<>()));
+        }
+    }
+
+    @Test
+    void probesIdTakenByIndexedMediaOfAnotherFile() throws SQLException {
+        final Map<Long, IndexedMedia> indexed = new HashMap<>();
+        indexed.put(MediaRow.calculateId(FILE, 0), new IndexedMedia(1, MediaRow.calculatePathCheck("/photos/other.jpg")));
+
+        for (MediaIdResolver resolver : resolvers()) {
+            assertEquals(MediaRow.calculateId(FILE, 1), resolver.resolve(FILE, indexed));
+        }
+    }
+
+    @Test
+    void keepsProbedIdOfIndexedFile() throws SQLException {
+        // the file has been indexed with a probed id, and the id that it collided with is free again
+        final long probedId = MediaRow.calculateId(FILE, 1);
+        insert(probedId, FILE, BASE_PATH_HASH);
+
+        for (MediaIdResolver resolver : resolvers()) {
+            final Map<Long, IndexedMedia> indexed = new HashMap<>();
+            assertEquals(probedId, resolver.resolve(FILE, indexed));
+            assertTrue(indexed.containsKey(probedId));
+        }
+
+        final Map<Long, IndexedMedia> indexed = new HashMap<>();
+        final IndexedMedia indexedMedia = new IndexedMedia(1, MediaRow.calculatePathCheck(FILE));
+        indexed.put(probedId, indexedMedia);
+        assertEquals(probedId, new MediaIdResolver(mediaService, mediaTable, BASE_PATH_HASH, new long[0]).resolve(FILE, indexed));
+        assertSame(indexedMedia, indexed.get(probedId));
+    }
+
+    @Test
+    void skipsFileOfAnotherMediaDirectory() throws SQLException {
+        insert(MediaRow.calculateId(FILE, 0), FILE, BASE_PATH_HASH + 1);
+
+        for (MediaIdResolver resolver : resolvers()) {
+            assertNull(resolver.resolve(FILE, new HashMap<>()));
+        }
+    }
+
+    @Test
+    void assignsSameIdWhenResolvedAgainInRun() throws SQLException {
+        final MediaIdResolver resolver = new MediaIdResolver(mediaService, mediaTable, BASE_PATH_HASH, new long[0]);
+
+        final Long id = resolver.resolve(FILE, new HashMap<>());
+        assertEquals(id, resolver.resolve(FILE, new HashMap<>()));
+    }
+
+    @Test
+    void failsIfAllProbesAreTaken() throws SQLException {
+        final Map<Long, IndexedMedia> indexed = new HashMap<>();
+        for (int attempt = 0; attempt < 16; attempt++) {
+            indexed.put(MediaRow.calculateId(FILE, attempt), new IndexedMedia(1, MediaRow.calculatePathCheck("/photos/other-" + attempt + ".jpg")));
+        }
+
+        for (MediaIdResolver resolver : resolvers()) {
+            assertThrows(SQLException.class, () -> resolver.resolve(FILE, indexed));
+        }
+    }
+
+    @Test
+    void failsIfLookupFails() throws SQLException {
+        insert(MediaRow.calculateId(FILE, 0), "/photos/other.jpg", BASE_PATH_HASH);
+        final List<MediaIdResolver> resolvers = resolvers();
+
+        // a failed lookup must not be taken for a free id
+        DatabaseHandler.setConnectionProvider(() -> {
+            throw new SQLException("database is locked");
+        });
+        for (MediaIdResolver resolver : resolvers) {
+            assertThrows(SQLException.class, () -> resolver.resolve(FILE, new HashMap<>()));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MediaIndexTest {
+
+    private static final long LAST_EDITED = 1_600_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private MediaTable mediaTable;
+
+    @BeforeEach
+    void createTable() {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db.sqlite").toFile()));
+        mediaTable = new MediaTable();
+        mediaTable.createSchema();
+    }
+
+    private static MediaRow createRow(int i, long basePathHash, long lastEdited) {
+        final boolean video = i % 5 == 0;
+        final String file = "/photos/album-" + (i % 4) + "/" + (video ? "VID_" : "IMG_") + (1000 + (i * 37) % 211) + "_" + i + (video ? ".mp4" : ".jpg");
+        final MediaRow row = new MediaRow();
+        row.setId(MediaRow.calculateId(file, 0));
+        row.setFile(file);
+        row.setLastEdited(new Timestamp(lastEdited));
+        row.setBasePathHash(basePathHash);
+        row.setMediaType(video ? MediaRow.MEDIA_TYPE_VIDEO : MediaRow.MEDIA_TYPE_IMAGE);
+        row.setExtension(video ? "mp4" : "jpg");
+        return row;
+    }
+
+    private static void assertSameIndex(MediaIndex expected, MediaIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        for (String orderBy : Arrays.asList("date", "name")) {
+            for (boolean asc : new boolean[]{true, false}) {
+                for (boolean includeVideos : new boolean[]{true, false}) {
+                    for (Collection<Long> disabled : Arrays.asList(Collections.<Long>emptyList(), Collections.singletonList(2L))) {
+                        final String view = orderBy + "/" + asc + "/" + includeVideos + "/" + disabled;
+                        assertEquals(expected.getIds(0, Integer.MAX_VALUE, orderBy, asc, includeVideos, disabled),
+                                actual.getIds(0, Integer.MAX_VALUE, orderBy, asc, includeVideos, disabled), view);
+                        assertEquals(expected.getCount(includeVideos, disabled), actual.getCount(includeVideos, disabled), view);
+                        assertEquals(toFiles(expected.getPageStarts(7, orderBy, asc, includeVideos, disabled)),
+                                toFiles(actual.getPageStarts(7, orderBy, asc, includeVideos, disabled)), view);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> toFiles(List<MediaRow> rows) {
+        return rows.stream().map(row -> row.getFileAsString() + "@" + row.getLastEdited().getTime()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void appliesChangesLikeRebuild() throws SQLException {
+        // several entries share a last edited time, so that the order falls back to the file names
+        final List<MediaRow> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(createRow(i, 1 + i % 2, LAST_EDITED + (i / 7) * 1000L));
+        }
+        mediaTable.insertAll(rows);
+        final MediaIndex index = MediaIndex.build(mediaTable);
+
+        final List<MediaRow> written = new ArrayList<>();
+        // moved to the start, the end and between existing entries, and from one media directory to the other
+        written.add(createRow(3, 2, LAST_EDITED - 5000));
+        written.add(createRow(10, 1, LAST_EDITED + 500_000));
+        written.add(createRow(42, 1, LAST_EDITED + 7 * 1000L));
+        for (int i = 100; i < 120; i++) {
+            written.add(createRow(i, 1 + i % 2, LAST_EDITED + (i % 13) * 1000L));
+        }
+        final List<Long> deletedIds = Arrays.asList(rows.get(0).getId(), rows.get(50).getId(), rows.get(99).getId(), 12345L);
+
+        mediaTable.upsertAll(written);
+        for (Long id : deletedIds) {
+            mediaTable.deleteWhere("id = ?", id);
+        }
+
+        final MediaIndex changed = index.withChanges(written, deletedIds);
+        assertSameIndex(MediaIndex.build(mediaTable), changed);
+        // changes that the index already contains are applied again after a concurrent rebuild
+        assertSameIndex(changed, changed.withChanges(written, deletedIds));
+    }
+
+    @Test
+    public void appliesChangesToEmptyIndex() throws SQLException {
+        final MediaIndex index = MediaIndex.build(mediaTable);
+
+        final List<MediaRow> written = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            written.add(createRow(i, 1, LAST_EDITED + (i % 3) * 1000L));
+        }
+        mediaTable.insertAll(written);
+
+        assertSameIndex(MediaIndex.build(mediaTable), index.withChanges(written, Collections.emptyList()));
+        assertEquals(0, index.withChanges(written, Collections.emptyList()).withChanges(Collections.emptyList(),
+                written.stream().map(MediaRow::getId).collect(Collectors.toList())).size());
+    }
+}
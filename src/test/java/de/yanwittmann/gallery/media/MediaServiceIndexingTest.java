@@ -0,0 +1,200 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.config.ConfigField;
+import de.yanwittmann.gallery.media.config.MediaServiceConfiguration;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MediaServiceIndexingTest {
+
+    private static final long LAST_EDITED = 1_600_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private Path media;
+    private HookedConfiguration configuration;
+    private MediaService mediaService;
+
+    /**
+     * Runs a hook whenever the media service checks whether content fingerprints are enabled on a walker thread, which
+     * it does for every new or changed file it finds while walking a media directory.
+     */
+    private static class HookedConfiguration extends MediaServiceConfiguration {
+        private final MediaServiceConfiguration configuration;
+        private volatile Runnable fileChangedHook = () -> {
+        };
+
+        private HookedConfiguration(File configFile) throws IOException {
+            super(configFile);
+            this.configuration = MediaServiceConfiguration.fromConfigFile(configFile);
+        }
+
+        @Override
+        public Object get(ConfigField field) {
+            if (field == ConfigField.CONTENT_FINGERPRINTS && Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                fileChangedHook.run();
+            }
+            return configuration.get(field);
+        }
+
+        @Override
+        public List<String> getStringList(ConfigField field) {
+            return configuration.getStringList(field);
+        }
+    }
+
+    @BeforeEach
+    void createMediaService() throws IOException {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db/db.sqlite").toFile()));
+
+        final Path configFile = directory.resolve("config.json");
+        Files.write(configFile, new JSONObject()
+                .put(ConfigField.INDEX_ON_STARTUP.getKey(), false)
+                .put(ConfigField.IN_MEMORY_INDEX.getKey(), true)
+                .put(ConfigField.WATCH_DIRECTORIES.getKey(), false)
+                .toString().getBytes(StandardCharsets.UTF_8));
+        configuration = new HookedConfiguration(configFile.toFile());
+        mediaService = new MediaService(configuration, mediaRow -> {
+        });
+
+        media = directory.resolve("media");
+        Files.createDirectories(media.resolve("album"));
+    }
+
+    private Path writeImage(String file, long lastEdited) throws IOException {
+        final Path path = media.resolve(file);
+        ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "png", path.toFile());
+        Files.setLastModifiedTime(path, FileTime.fromMillis(lastEdited));
+        return path;
+    }
+
+    private MediaIndexingResult rescan() {
+        return mediaService.rescanMedia(media.toFile());
+    }
+
+    private Set<String> getIndexedFiles() throws SQLException {
+        return new MediaTable().getAll().stream()
+                .map(row -> media.relativize(Path.of(row.getFileAsString())).toString().replace(File.separatorChar, '/'))
+                .collect(Collectors.toSet());
+    }
+
+    private static void assertResult(MediaIndexingResult result, int inserted, int updated, int unchanged, int deleted) {
+        assertEquals(inserted, result.getInserted(), "inserted of " + result);
+        assertEquals(updated, result.getUpdated(), "updated of " + result);
+        assertEquals(unchanged, result.getUnchanged(), "unchanged of " + result);
+        assertEquals(deleted, result.getDeleted(), "deleted of " + result);
+    }
+
+    @Test
+    public void reconcilesTableWithMediaDirectory() throws IOException, SQLException {
+        writeImage("a.png", LAST_EDITED);
+        writeImage("album/b.png", LAST_EDITED);
+        writeImage("album/c.png", LAST_EDITED);
+        Files.write(media.resolve("album/notes.txt"), "not a media file".getBytes(StandardCharsets.UTF_8));
+
+        final MediaIndexingResult first = rescan();
+        assertTrue(first.isComplete());
+        assertResult(first, 3, 0, 0, 0);
+        assertEquals(new HashSet<>(Arrays.asList("a.png", "album/b.png", "album/c.png")), getIndexedFiles());
+
+        assertResult(rescan(), 0, 0, 3, 0);
+
+        // one file changed, one added and one removed
+        Files.setLastModifiedTime(media.resolve("album/b.png"), FileTime.fromMillis(LAST_EDITED + 1000));
+        writeImage("album/d.png", LAST_EDITED);
+        Files.delete(media.resolve("album/c.png"));
+
+        final MediaIndexingResult changed = rescan();
+        assertTrue(changed.isComplete());
+        assertResult(changed, 1, 1, 1, 1);
+        assertEquals(new HashSet<>(Arrays.asList("a.png", "album/b.png", "album/d.png")), getIndexedFiles());
+
+        final MediaRow updated = new MediaTable().getAll().stream()
+                .filter(row -> row.getFileAsString().endsWith("b.png"))
+                .findFirst().orElseThrow();
+        assertEquals(LAST_EDITED + 1000, updated.getLastEdited().getTime());
+        assertEquals(4, updated.getWidth());
+        assertEquals(3, updated.getHeight());
+        assertEquals(3, mediaService.getTotalCount(true));
+
+        // removing the whole album removes all of its media
+        Files.delete(media.resolve("album/b.png"));
+        Files.delete(media.resolve("album/d.png"));
+        Files.delete(media.resolve("album/notes.txt"));
+        Files.delete(media.resolve("album"));
+        assertResult(rescan(), 0, 0, 1, 2);
+        assertEquals(new HashSet<>(Arrays.asList("a.png")), getIndexedFiles());
+        assertEquals(1, mediaService.getTotalCount(true));
+    }
+
+    @Test
+    public void keepsMediaIfWalkIsCancelled() throws IOException, SQLException {
+        writeImage("a.png", LAST_EDITED);
+        writeImage("album/b.png", LAST_EDITED);
+        writeImage("album/c.png", LAST_EDITED);
+        assertResult(rescan(), 3, 0, 0, 0);
+
+        Files.delete(media.resolve("album/c.png"));
+        Files.setLastModifiedTime(media.resolve("a.png"), FileTime.fromMillis(LAST_EDITED + 1000));
+        Files.setLastModifiedTime(media.resolve("album/b.png"), FileTime.fromMillis(LAST_EDITED + 1000));
+        configuration.fileChangedHook = mediaService::cancelIndexing;
+
+        final MediaIndexingResult cancelled = rescan();
+        assertFalse(cancelled.isComplete());
+        assertEquals(0, cancelled.getDeleted());
+        assertEquals(new HashSet<>(Arrays.asList("a.png", "album/b.png", "album/c.png")), getIndexedFiles());
+
+        // the next complete walk removes the missing file
+        configuration.fileChangedHook = () -> {
+        };
+        final MediaIndexingResult complete = rescan();
+        assertTrue(complete.isComplete());
+        assertEquals(1, complete.getDeleted());
+        assertEquals(new HashSet<>(Arrays.asList("a.png", "album/b.png")), getIndexedFiles());
+    }
+
+    @Test
+    public void keepsMediaIfWalkFails() throws IOException, SQLException {
+        writeImage("a.png", LAST_EDITED);
+        writeImage("album/b.png", LAST_EDITED);
+        assertResult(rescan(), 2, 0, 0, 0);
+
+        Files.delete(media.resolve("album/b.png"));
+        writeImage("album/c.png", LAST_EDITED);
+        configuration.fileChangedHook = () -> {
+            throw new IllegalStateException("Simulated failure whilst indexing");
+        };
+
+        final MediaIndexingResult failed = rescan();
+        assertFalse(failed.isComplete());
+        assertEquals(0, failed.getDeleted());
+        assertEquals(new HashSet<>(Arrays.asList("a.png", "album/b.png")), getIndexedFiles());
+    }
+}
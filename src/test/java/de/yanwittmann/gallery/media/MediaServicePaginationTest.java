@@ -0,0 +1,146 @@
+package de.yanwittmann.gallery.media;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.media.config.ConfigField;
+import de.yanwittmann.gallery.media.config.MediaServiceConfiguration;
+import de.yanwittmann.gallery.media.db.MediaRow;
+import de.yanwittmann.gallery.media.db.MediaTable;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MediaServicePaginationTest {
+
+    /**
+     * The page size of {@link MediaService}.
+     */
+    private static final int PAGE_SIZE = 60;
+    private static final long LAST_EDITED = 1_600_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private MediaService mediaService;
+    private List<MediaRow> rows;
+
+    @BeforeEach
+    void createMediaService() throws IOException, SQLException {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db/db.sqlite").toFile()));
+
+        final Path configFile = directory.resolve("config.json");
+        Files.write(configFile, new JSONObject()
+                .put(ConfigField.INDEX_ON_STARTUP.getKey(), false)
+                .put(ConfigField.IN_MEMORY_INDEX.getKey(), false)
+                .put(ConfigField.WATCH_DIRECTORIES.getKey(), false)
+                .toString().getBytes(StandardCharsets.UTF_8));
+        mediaService = new MediaService(MediaServiceConfiguration.fromConfigFile(configFile.toFile()), mediaRow -> {
+        });
+
+        // several entries share a last edited time, so that page boundaries fall into runs of equal sort keys
+        rows = new ArrayList<>();
+        for (int i = 0; i < 2 * PAGE_SIZE + 17; i++) {
+            final boolean video = i % 5 == 0;
+            final String file = "/photos/album-" + (i % 4) + "/" + (video ? "VID_" : "IMG_") + (1000 + (i * 37) % 211) + "_" + i + (video ? ".mp4" : ".jpg");
+            final MediaRow row = new MediaRow();
+            row.setId(MediaRow.calculateId(file, 0));
+            row.setFile(file);
+            row.setLastEdited(new Timestamp(LAST_EDITED + (i / 7) * 1000L));
+            row.setBasePathHash(42L);
+            row.setMediaType(video ? MediaRow.MEDIA_TYPE_VIDEO : MediaRow.MEDIA_TYPE_IMAGE);
+            row.setExtension(video ? "mp4" : "jpg");
+            rows.add(row);
+        }
+        new MediaTable().insertAll(rows);
+    }
+
+    private List<Long> readAllPages(String orderBy, boolean asc, boolean includeVideos) throws SQLException {
+        final List<Long> ids = new ArrayList<>();
+        MediaCursor cursor = null;
+        do {
+            final MediaCursorPage page = mediaService.getMediaIdsAfter(cursor, orderBy, asc, includeVideos);
+            ids.addAll(page.getIds());
+            cursor = page.getNext() == null ? null : MediaCursor.decode(page.getNext().encode());
+        } while (cursor != null);
+        return ids;
+    }
+
+    private List<Long> expectedIds(Comparator<MediaRow> order, boolean asc, boolean includeVideos) {
+        final List<MediaRow> expected = rows.stream()
+                .filter(row -> includeVideos || row.getMediaType().equals(MediaRow.MEDIA_TYPE_IMAGE))
+                .sorted(asc ? order : order.reversed())
+                .collect(Collectors.toList());
+        return expected.stream().map(MediaRow::getId).collect(Collectors.toList());
+    }
+
+    private static Comparator<MediaRow> byDate() {
+        return Comparator.comparing((MediaRow row) -> row.getLastEdited().getTime())
+                .thenComparing(MediaRow::getFileAsString)
+                .thenComparing(MediaRow::getId);
+    }
+
+    private static Comparator<MediaRow> byName() {
+        return Comparator.comparing(MediaRow::getFileAsString)
+                .thenComparing((MediaRow row) -> row.getLastEdited().getTime())
+                .thenComparing(MediaRow::getId);
+    }
+
+    @Test
+    void pagesContinueWithoutGapsOrDuplicates() throws SQLException {
+        assertEquals(expectedIds(byDate(), true, true), readAllPages("date", true, true));
+        assertEquals(expectedIds(byDate(), false, true), readAllPages("date", false, true));
+        assertEquals(expectedIds(byName(), true, true), readAllPages("name", true, true));
+        assertEquals(expectedIds(byName(), false, true), readAllPages("name", false, true));
+    }
+
+    @Test
+    void pagesContinueWithoutVideos() throws SQLException {
+        assertEquals(expectedIds(byDate(), true, false), readAllPages("date", true, false));
+        assertEquals(expectedIds(byName(), false, false), readAllPages("name", false, false));
+    }
+
+    @Test
+    void lastPageHasNoNextCursor() throws SQLException {
+        final MediaCursorPage first = mediaService.getMediaIdsAfter(null, "date", true, true);
+        assertEquals(PAGE_SIZE, first.getIds().size());
+        assertNotNull(first.getNext());
+
+        final MediaCursorPage second = mediaService.getMediaIdsAfter(first.getNext(), "date", true, true);
+        assertEquals(PAGE_SIZE, second.getIds().size());
+        assertNotNull(second.getNext());
+
+        final MediaCursorPage last = mediaService.getMediaIdsAfter(second.getNext(), "date", true, true);
+        assertEquals(17, last.getIds().size());
+        assertNull(last.getNext());
+    }
+
+    @Test
+    void cursorPagesMatchOffsetPages() throws SQLException {
+        MediaCursor cursor = null;
+        for (int page = 0; page < 3; page++) {
+            final MediaCursorPage cursorPage = mediaService.getMediaIdsAfter(cursor, "name", true, true);
+            final List<Long> offsetPage = new ArrayList<>(mediaService.getMediaIds(page, "name", true, true));
+            assertEquals(offsetPage, cursorPage.getIds());
+            cursor = cursorPage.getNext();
+        }
+        assertNull(cursor);
+        assertEquals(Collections.emptyList(), mediaService.getMediaIds(3, "name", true, true));
+    }
+}
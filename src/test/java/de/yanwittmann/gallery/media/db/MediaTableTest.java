@@ -0,0 +1,158 @@
+package de.yanwittmann.gallery.media.db;
+
+import de.yanwittmann.gallery.db.connection.DatabaseHandler;
+import de.yanwittmann.gallery.db.connection.SqlLiteDatabaseConnectionProvider;
+import de.yanwittmann.gallery.db.migration.SchemaMigrator;
+import de.yanwittmann.gallery.media.MediaService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MediaTableTest {
+
+    /**
+     * The version before the ids have been changed to xxHash64.
+     */
+    private static final int POLYNOMIAL_ID_VERSION = 4;
+
+    @TempDir
+    Path directory;
+
+    private MediaTable mediaTable;
+
+    @BeforeEach
+    void useTemporaryDatabase() throws SQLException {
+        DatabaseHandler.setConnectionProvider(new SqlLiteDatabaseConnectionProvider(directory.resolve("db.sqlite").toFile()));
+        mediaTable = new MediaTable();
+        SchemaMigrator.migrate(mediaTable.getTableName(), mediaTable.getSchemaMigrations().subList(0, POLYNOMIAL_ID_VERSION));
+    }
+
+    /**
+     * Inserts the rows directly, as the table operations would apply the remaining migrations first.
+     */
+    private void insert(Map<Long, String> rows) throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO media (id, file, last_edited, base_path_hash) VALUES (?, ?, ?, 1)")) {
+            for (Map.Entry<Long, String> row : rows.entrySet()) {
+                statement.setLong(1, row.getKey());
+                statement.setString(2, row.getValue());
+                statement.setLong(3, 1_600_000_000_000L);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static Map<String, Long> readIdsByFile() throws SQLException {
+        final Map<String, Long> ids = new HashMap<>();
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT id, file FROM media")) {
+            while (resultSet.next()) {
+                ids.put(resultSet.getString(2), resultSet.getLong(1));
+            }
+        }
+        return ids;
+    }
+
+    private static int getVersion() throws SQLException {
+        try (Connection connection = DatabaseHandler.getConnectionProvider().connection()) {
+            return SchemaMigrator.getVersion(connection, "media");
+        }
+    }
+
+    @Test
+    void rekeysPolynomialIdsToXxHash64() throws SQLException {
+        final Map<Long, String> rows = new LinkedHashMap<>();
+        for (String file : Arrays.asList("/photos/a.jpg", "/photos/b.png", "/photos/2020/c.mp4")) {
+            rows.put(MediaService.hash(file), file);
+        }
+        insert(rows);
+
+        mediaTable.createSchema();
+
+        assertEquals(6, getVersion());
+        final Map<String, Long> ids = readIdsByFile();
+        final Map<Long, Long> expectedMigration = new HashMap<>();
+        for (Map.Entry<Long, String> row : rows.entrySet()) {
+            final long newId = MediaRow.calculateId(row.getValue(), 0);
+            assertEquals(newId, ids.get(row.getValue()));
+            expectedMigration.put(row.getKey(), newId);
+        }
+        assertEquals(expectedMigration, mediaTable.getIdMigration());
+    }
+
+    @Test
+    void probesIdsThatAreTakenByOldIds() throws SQLException {
+        final String first = "/photos/first.jpg";
+        final String second = "/photos/second.jpg";
+        final String unchanged = "/photos/unchanged.jpg";
+        final Map<Long, String> rows = new LinkedHashMap<>();
+        // the old id of the second file is the new id of the first one, which must not be taken over while the second
+        // row still holds it
+        rows.put(MediaService.hash(first), first);
+        rows.put(MediaRow.calculateId(first, 0), second);
+        rows.put(MediaRow.calculateId(unchanged, 0), unchanged);
+        insert(rows);
+
+        mediaTable.createSchema();
+
+        final Map<String, Long> ids = readIdsByFile();
+        assertEquals(MediaRow.calculateId(first, 1), ids.get(first));
+        assertEquals(MediaRow.calculateId(second, 0), ids.get(second));
+        assertEquals(MediaRow.calculateId(unchanged, 0), ids.get(unchanged));
+
+        final Map<Long, Long> migration = mediaTable.getIdMigration();
+        assertEquals(2, migration.size());
+        assertEquals(ids.get(first), migration.get(MediaService.hash(first)));
+        assertEquals(ids.get(second), migration.get(MediaRow.calculateId(first, 0)));
+    }
+
+    @Test
+    void migratesIdsOnlyOnce() throws SQLException {
+        final String file = "/photos/a.jpg";
+        insert(Collections.singletonMap(MediaService.hash(file), file));
+        mediaTable.createSchema();
+        mediaTable.clearIdMigration();
+
+        // a row that is written with a polynomial id after the migration must not be rekeyed again
+        final String later = "/photos/later.jpg";
+        insert(Collections.singletonMap(MediaService.hash(later), later));
+        mediaTable.createSchema();
+
+        assertEquals(6, getVersion());
+        final Map<String, Long> ids = readIdsByFile();
+        assertEquals(MediaRow.calculateId(file, 0), ids.get(file));
+        assertEquals(MediaService.hash(later), ids.get(later));
+        assertTrue(mediaTable.getIdMigration().isEmpty());
+    }
+
+    @Test
+    void getAllIdsIsSorted() throws SQLException {
+        mediaTable.createSchema();
+        final Map<Long, String> rows = new LinkedHashMap<>();
+        for (String file : Arrays.asList("/b.jpg", "/a.jpg", "/c.jpg", "/d.jpg")) {
+            rows.put(MediaRow.calculateId(file, 0), file);
+        }
+        insert(rows);
+
+        final long[] ids = mediaTable.getAllIds();
+        final long[] expected = rows.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        assertTrue(Arrays.equals(expected, ids));
+    }
+}
@@ -0,0 +1,251 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbnailCacheTest {
+
+    private static final int SIZE = 256;
+    private static final int DATA_LENGTH = 1000;
+    private static final String EXTENSION = "jpg";
+    /**
+     * The length of the record of one thumbnail: the header, the extension and the data.
+     */
+    private static final int RECORD_LENGTH = 45 + EXTENSION.length() + DATA_LENGTH;
+    private static final long LARGE_BUDGET = 1024L * 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private final AtomicInteger generated = new AtomicInteger();
+
+    private static byte[] data(long sourceHash, long lastEdited) {
+        final byte[] data = new byte[DATA_LENGTH];
+        Arrays.fill(data, (byte) (sourceHash * 31 + lastEdited));
+        return data;
+    }
+
+    private ThumbnailCache.ThumbnailGenerator generator(long sourceHash, long lastEdited) {
+        return output -> {
+            generated.incrementAndGet();
+            output.write(data(sourceHash, lastEdited));
+            return EXTENSION;
+        };
+    }
+
+    private Thumbnail create(ThumbnailCache cache, long sourceHash, long lastEdited) throws IOException {
+        return cache.getOrCreate(sourceHash, lastEdited, SIZE, generator(sourceHash, lastEdited));
+    }
+
+    private static byte[] bytes(Thumbnail thumbnail) {
+        final ByteBuffer data = thumbnail.getData().duplicate();
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static void assertCached(ThumbnailCache cache, long sourceHash, long lastEdited) throws IOException {
+        final Thumbnail thumbnail = cache.getIfPresent(sourceHash, lastEdited, SIZE);
+        assertNotNull(thumbnail, "thumbnail of source " + sourceHash + " is missing");
+        assertArrayEquals(data(sourceHash, lastEdited), bytes(thumbnail));
+    }
+
+    private File segmentFile(int id) {
+        return directory.resolve("segment-" + id + ".dat").toFile();
+    }
+
+    /**
+     * Waits for the compactions that have been scheduled so far, as the rekeying runs on the same thread after them.
+     */
+    private static void awaitCompactions(ThumbnailCache cache) throws IOException {
+        cache.rekey(Collections.emptyMap());
+    }
+
+    @Test
+    void generatesThumbnailOnlyOnce() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+
+        create(cache, 1, 100);
+        final Thumbnail cached = create(cache, 1, 100);
+
+        assertEquals(1, generated.get());
+        assertArrayEquals(data(1, 100), bytes(cached));
+        assertEquals(SIZE + "-1-100." + EXTENSION, cached.getFilename());
+    }
+
+    @Test
+    void regeneratesThumbnailOfChangedSource() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        create(cache, 1, 100);
+
+        assertArrayEquals(data(1, 200), bytes(create(cache, 1, 200)));
+        assertEquals(2, generated.get());
+        assertNull(cache.getIfPresent(1, 100, SIZE));
+    }
+
+    @Test
+    void loadsThumbnailsAfterRestart() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        for (long sourceHash = 0; sourceHash < 5; sourceHash++) {
+            create(cache, sourceHash, 100);
+        }
+        // the outdated record must not be loaded again
+        create(cache, 0, 200);
+
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        assertCached(restarted, 0, 200);
+        assertNull(restarted.getIfPresent(0, 100, SIZE));
+        for (long sourceHash = 1; sourceHash < 5; sourceHash++) {
+            assertCached(restarted, sourceHash, 100);
+        }
+        assertEquals(5, restarted.toJson().getInt("entries"));
+        assertEquals(5L * RECORD_LENGTH, restarted.toJson().getLong("bytes"));
+    }
+
+    @Test
+    void discardsRecordsFromChecksumMismatchOnLoad() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        for (long sourceHash = 0; sourceHash < 3; sourceHash++) {
+            create(cache, sourceHash, 100);
+        }
+        assertEquals(3L * RECORD_LENGTH, segmentFile(1).length());
+
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(1), "rw")) {
+            final long position = RECORD_LENGTH + RECORD_LENGTH / 2;
+            file.seek(position);
+            final int value = file.read();
+            file.seek(position);
+            file.write(value + 1);
+        }
+
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        assertCached(restarted, 0, 100);
+        assertNull(restarted.getIfPresent(1, 100, SIZE));
+        assertNull(restarted.getIfPresent(2, 100, SIZE));
+        assertEquals(RECORD_LENGTH, segmentFile(1).length());
+    }
+
+    @Test
+    void discardsIncompleteRecordOnLoad() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        create(cache, 0, 100);
+
+        // the start of a second record, as if the application had been stopped whilst writing it
+        final byte[] segment = Files.readAllBytes(segmentFile(1).toPath());
+        Files.write(segmentFile(1).toPath(), Arrays.copyOf(segment, segment.length + RECORD_LENGTH / 2));
+
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        assertCached(restarted, 0, 100);
+        assertEquals(RECORD_LENGTH, segmentFile(1).length());
+    }
+
+    @Test
+    void evictsLeastRecentlyCreatedAfterRestart() throws IOException, InterruptedException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        for (long sourceHash = 0; sourceHash < 4; sourceHash++) {
+            create(cache, sourceHash, 100);
+            Thread.sleep(5);
+        }
+
+        // the access times are stored in the records, so only the oldest thumbnail is evicted
+        final ThumbnailCache smaller = new ThumbnailCache(directory.toFile(), 3L * RECORD_LENGTH + RECORD_LENGTH / 2);
+        assertNull(smaller.getIfPresent(0, 100, SIZE));
+        for (long sourceHash = 1; sourceHash < 4; sourceHash++) {
+            assertCached(smaller, sourceHash, 100);
+        }
+
+        // the eviction is stored as well, the evicted thumbnail does not return with a larger budget
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        assertNull(restarted.getIfPresent(0, 100, SIZE));
+        assertEquals(3, restarted.toJson().getInt("entries"));
+    }
+
+    @Test
+    void compactsSegmentWithFewThumbnailsInUse() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET, 4L * RECORD_LENGTH);
+        for (long sourceHash = 0; sourceHash < 8; sourceHash++) {
+            create(cache, sourceHash, 100);
+        }
+        assertEquals(4L * RECORD_LENGTH, segmentFile(1).length());
+
+        // replaces three of the four thumbnails in the first segment
+        for (long sourceHash = 0; sourceHash < 3; sourceHash++) {
+            create(cache, sourceHash, 200);
+        }
+        awaitCompactions(cache);
+
+        assertFalse(segmentFile(1).exists());
+        assertEquals(1, cache.toJson().getInt("compactions"));
+        assertCached(cache, 3, 100);
+
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET, 4L * RECORD_LENGTH);
+        for (long sourceHash = 0; sourceHash < 8; sourceHash++) {
+            assertCached(restarted, sourceHash, sourceHash < 3 ? 200 : 100);
+        }
+        assertEquals(8, restarted.toJson().getInt("entries"));
+    }
+
+    @Test
+    void keepsSegmentsWithinBudget() throws IOException {
+        final long maxBytes = 8L * RECORD_LENGTH;
+        final long segmentMaxBytes = 2L * RECORD_LENGTH;
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), maxBytes, segmentMaxBytes);
+        for (long sourceHash = 0; sourceHash < 40; sourceHash++) {
+            create(cache, sourceHash, 100);
+            awaitCompactions(cache);
+        }
+
+        assertTrue(cache.toJson().getLong("bytes") <= maxBytes);
+        // only the segment that is appended to can exceed the budget, as it cannot be compacted
+        assertTrue(cache.toJson().getLong("segmentBytes") <= maxBytes + segmentMaxBytes,
+                "segment bytes " + cache.toJson().getLong("segmentBytes"));
+        assertCached(cache, 39, 100);
+    }
+
+    @Test
+    void rekeysThumbnailsInPlace() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        create(cache, 1, 100);
+        create(cache, 2, 100);
+        create(cache, 3, 100);
+        final long segmentLength = segmentFile(1).length();
+
+        final Map<Long, Long> sourceHashes = new HashMap<>();
+        sourceHashes.put(1L, 10L);
+        // a thumbnail already exists for the new hash, the old one is dropped
+        sourceHashes.put(2L, 3L);
+        assertEquals(1, cache.rekey(sourceHashes));
+
+        assertEquals(segmentLength, segmentFile(1).length());
+        assertNull(cache.getIfPresent(1, 100, SIZE));
+        assertNull(cache.getIfPresent(2, 100, SIZE));
+        assertArrayEquals(data(1, 100), bytes(cache.getIfPresent(10, 100, SIZE)));
+        assertCached(cache, 3, 100);
+
+        final ThumbnailCache restarted = new ThumbnailCache(directory.toFile(), LARGE_BUDGET);
+        assertNull(restarted.getIfPresent(1, 100, SIZE));
+        assertNull(restarted.getIfPresent(2, 100, SIZE));
+        assertArrayEquals(data(1, 100), bytes(restarted.getIfPresent(10, 100, SIZE)));
+        assertCached(restarted, 3, 100);
+        assertEquals(2, restarted.toJson().getInt("entries"));
+    }
+}
@@ -0,0 +1,157 @@
+package de.yanwittmann.gallery.media.thumbnail;
+
+import de.yanwittmann.gallery.util.ImageUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbnailPipelineTest {
+
+    private static final int[] SIZES = {128, 256, 512};
+
+    @TempDir
+    Path directory;
+
+    private ThumbnailCache cache;
+    private ThumbnailPipeline pipeline;
+
+    @BeforeEach
+    void createPipeline() {
+        cache = new ThumbnailCache(directory.resolve("thumbs").toFile(), 1024L * 1024 * 1024);
+        pipeline = new ThumbnailPipeline(cache, new ThumbnailEncoder(ThumbnailEncoder.FORMAT_JPEG, 0.9f), SIZES, 2);
+    }
+
+    private static BufferedImage filled(int width, int height, Color color) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] jpeg(BufferedImage image) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageUtil.writeJpeg(image, output, 0.9f);
+        return output.toByteArray();
+    }
+
+    /**
+     * Creates a JPEG whose EXIF data contains the given thumbnail, with an empty IFD0 followed by an IFD1 that points to
+     * the thumbnail.
+     */
+    private File createJpegWithExifThumbnail(BufferedImage image, BufferedImage exifThumbnail) throws IOException {
+        final byte[] thumbnail = jpeg(exifThumbnail);
+        final int thumbnailOffset = 8 + 2 + 4 + 2 + 2 * 12 + 4;
+        final ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + thumbnail.length)
+                .put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8)
+                // IFD0 without entries, followed by the offset of IFD1
+                .putShort((short) 0).putInt(14)
+                // IFD1 with the offset and length of the thumbnail
+                .putShort((short) 2)
+                .putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset)
+                .putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length)
+                .putInt(0)
+                .put(thumbnail);
+
+        final byte[] exifHeader = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        final byte[] main = jpeg(image);
+        final ByteBuffer file = ByteBuffer.allocate(main.length + 4 + exifHeader.length + tiff.capacity())
+                .put(main, 0, 2)
+                .put((byte) 0xFF).put((byte) 0xE1).putShort((short) (2 + exifHeader.length + tiff.capacity()))
+                .put(exifHeader)
+                .put(tiff.array())
+                .put(main, 2, main.length - 2);
+
+        final Path path = directory.resolve("IMG_0001.jpg");
+        Files.write(path, file.array());
+        return path.toFile();
+    }
+
+    private static byte[] toBytes(Thumbnail thumbnail) {
+        final ByteBuffer data = thumbnail.getData().duplicate();
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static Color centerColor(Thumbnail thumbnail) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(toBytes(thumbnail)));
+        return new Color(image.getRGB(image.getWidth() / 2, image.getHeight() / 2));
+    }
+
+    private static boolean isRed(Color color) {
+        return color.getRed() > 200 && color.getBlue() < 60;
+    }
+
+    private static boolean isBlue(Color color) {
+        return color.getBlue() > 200 && color.getRed() < 60;
+    }
+
+    @Test
+    void createsSizesCoveredByExifThumbnailFromIt() throws IOException {
+        // the colors tell which image a size has been created from
+        final File source = createJpegWithExifThumbnail(filled(1600, 1200, Color.BLUE), filled(160, 120, Color.RED));
+
+        final Thumbnail small = pipeline.request(source, false, 1, 100, 100);
+        assertNotNull(small);
+        assertTrue(isRed(centerColor(small)));
+
+        final Thumbnail medium = pipeline.request(source, false, 1, 100, 256);
+        final Thumbnail large = pipeline.request(source, false, 1, 100, 512);
+        assertTrue(isBlue(centerColor(medium)));
+        assertTrue(isBlue(centerColor(large)));
+        assertEquals(512, ImageIO.read(new ByteArrayInputStream(toBytes(large))).getWidth());
+    }
+
+    @Test
+    void decodesSourceWithoutExifThumbnail() throws IOException {
+        final Path path = directory.resolve("IMG_0002.jpg");
+        Files.write(path, jpeg(filled(800, 600, Color.BLUE)));
+
+        for (int size : SIZES) {
+            final Thumbnail thumbnail = pipeline.request(path.toFile(), false, 2, 100, size);
+            assertNotNull(thumbnail);
+            assertTrue(isBlue(centerColor(thumbnail)));
+        }
+    }
+
+    @Test
+    void servesUndecodableSourceAsItIs() throws IOException {
+        final Path path = directory.resolve("IMG_0003.jpg");
+        Files.write(path, "not an image".getBytes(StandardCharsets.US_ASCII));
+
+        assertNull(pipeline.request(path.toFile(), false, 3, 100, 128));
+        assertNull(pipeline.request(path.toFile(), false, 3, 100, 512));
+        assertEquals(1, pipeline.toJson().getLong("failed"));
+    }
+
+    @Test
+    void servesSourceIfThumbnailIsNotGeneratedInTime() throws IOException {
+        final Path path = directory.resolve("IMG_0004.jpg");
+        Files.write(path, jpeg(filled(800, 600, Color.BLUE)));
+
+        // without workers the requested pyramid is never generated
+        final ThumbnailPipeline idlePipeline = new ThumbnailPipeline(cache, new ThumbnailEncoder(ThumbnailEncoder.FORMAT_JPEG, 0.9f), SIZES, 0, 50);
+        assertNull(idlePipeline.request(path.toFile(), false, 4, 100, 128));
+        assertEquals(1, idlePipeline.toJson().getLong("queueDepth"));
+    }
+}
@@ -0,0 +1,221 @@
+package de.yanwittmann.gallery.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileRangeWriterTest {
+
+    private static final String CONTENT = "0123456789";
+    private static final String CONTENT_TYPE = "text/plain";
+    private static final String ETAG = "\"42-1000\"";
+    private static final long LAST_EDITED = 1_600_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private File file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        file = Files.write(directory.resolve("media.txt"), CONTENT.getBytes(StandardCharsets.US_ASCII)).toFile();
+    }
+
+    private MockHttpServletResponse write(MockHttpServletRequest request) throws IOException {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        FileRangeWriter.write(file, CONTENT_TYPE, ETAG, LAST_EDITED, request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/media/get/42/full");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        return request;
+    }
+
+    @Test
+    void writesWholeFileWithoutRange() throws IOException {
+        final MockHttpServletResponse response = write(request(null));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(CONTENT.length(), response.getContentLengthLong());
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    void writesSingleRange() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=2-5"));
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 2-5/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(4, response.getContentLengthLong());
+        assertEquals("2345", response.getContentAsString());
+    }
+
+    @Test
+    void writesOpenEndedAndSuffixRanges() throws IOException {
+        final MockHttpServletResponse openEnded = write(request("bytes=7-"));
+        assertEquals(206, openEnded.getStatus());
+        assertEquals("bytes 7-9/10", openEnded.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("789", openEnded.getContentAsString());
+
+        final MockHttpServletResponse suffix = write(request("bytes=-3"));
+        assertEquals(206, suffix.getStatus());
+        assertEquals("bytes 7-9/10", suffix.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("789", suffix.getContentAsString());
+    }
+
+    @Test
+    void clampsRangeEndToFileLength() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=8-100"));
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 8-9/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("89", response.getContentAsString());
+    }
+
+    @Test
+    void rejectsRangeBeyondEndOfFile() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=10-20"));
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("", response.getContentAsString());
+    }
+
+    @Test
+    void rejectsMalformedRange() throws IOException {
+        assertEquals(416, write(request("bytes=abc")).getStatus());
+        assertEquals(416, write(request("bytes=5-2")).getStatus());
+        assertEquals(416, write(request("items=0-1")).getStatus());
+    }
+
+    @Test
+    void writesMultipleRangesAsMultipart() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=0-1,8-9"));
+
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+        final String boundary = response.getContentType().substring(response.getContentType().indexOf('=') + 1);
+
+        final String body = response.getContentAsString();
+        assertEquals(body.length(), response.getContentLengthLong());
+        assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n--" + boundary));
+        assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    void mergesOverlappingAndAdjacentRanges() throws IOException {
+        final MockHttpServletResponse overlapping = write(request("bytes=0-3,2-5"));
+        assertEquals(206, overlapping.getStatus());
+        assertEquals("bytes 0-5/10", overlapping.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("012345", overlapping.getContentAsString());
+
+        final MockHttpServletResponse adjacent = write(request("bytes=4-5,2-3"));
+        assertEquals(206, adjacent.getStatus());
+        assertEquals("bytes 2-5/10", adjacent.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("2345", adjacent.getContentAsString());
+    }
+
+    @Test
+    void writesMergedRangesInFileOrder() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=8-9,0-1,1-1"));
+
+        assertEquals(206, response.getStatus());
+        final String body = response.getContentAsString();
+        assertTrue(body.indexOf("bytes 0-1/10") < body.indexOf("bytes 8-9/10"));
+        assertEquals(-1, body.indexOf("bytes 1-1/10"));
+    }
+
+    @Test
+    void writesWholeFileIfRangesExceedFile() throws IOException {
+        final MockHttpServletResponse response = write(request("bytes=0-,0-,0-"));
+
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(CONTENT.length(), response.getContentLengthLong());
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    void rejectsTooManyRanges() throws IOException {
+        final StringBuilder range = new StringBuilder("bytes=0-0");
+        for (int i = 0; i < 100; i++) {
+            range.append(",0-0");
+        }
+
+        assertEquals(416, write(request(range.toString())).getStatus());
+    }
+
+    @Test
+    void appliesRangeIfEntityTagMatches() throws IOException {
+        final MockHttpServletRequest request = request("bytes=0-1");
+        request.addHeader(HttpHeaders.IF_RANGE, ETAG);
+
+        final MockHttpServletResponse response = write(request);
+        assertEquals(206, response.getStatus());
+        assertEquals("01", response.getContentAsString());
+    }
+
+    @Test
+    void writesWholeFileIfEntityTagIsOutdated() throws IOException {
+        final MockHttpServletRequest request = request("bytes=0-1");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"42-999\"");
+
+        final MockHttpServletResponse response = write(request);
+        assertEquals(200, response.getStatus());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    void evaluatesIfRangeDateInSeconds() throws IOException {
+        final MockHttpServletRequest matching = request("bytes=0-1");
+        matching.addHeader(HttpHeaders.IF_RANGE, LAST_EDITED + 999);
+        assertEquals(206, write(matching).getStatus());
+
+        final MockHttpServletRequest outdated = request("bytes=0-1");
+        outdated.addHeader(HttpHeaders.IF_RANGE, LAST_EDITED - 1000);
+        assertEquals(200, write(outdated).getStatus());
+    }
+
+    @Test
+    void writesHeadersOnlyForHeadRequests() throws IOException {
+        final MockHttpServletRequest request = request("bytes=2-5");
+        request.setMethod("HEAD");
+
+        final MockHttpServletResponse response = write(request);
+        assertEquals(206, response.getStatus());
+        assertEquals(4, response.getContentLengthLong());
+        assertEquals("", response.getContentAsString());
+    }
+
+    @Test
+    void handsRangeToContainerIfSendfileIsSupported() throws IOException {
+        final MockHttpServletRequest request = request("bytes=2-5");
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+
+        final MockHttpServletResponse response = write(request);
+        assertEquals(206, response.getStatus());
+        assertEquals("", response.getContentAsString());
+        assertEquals(file.getCanonicalPath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(2L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(6L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+    }
+}
@@ -0,0 +1,200 @@
+package de.yanwittmann.gallery.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelFileWalkerTest {
+
+    @TempDir
+    Path root;
+
+    private final Set<Path> visited = ConcurrentHashMap.newKeySet();
+
+    private static void createFile(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{1});
+    }
+
+    private static ParallelFileWalker walker(Predicate<Path> dirFilter, BiConsumer<Path, BasicFileAttributes> consumer) {
+        return new ParallelFileWalker(file -> file.toString().endsWith(".jpg"), dirFilter, consumer, 4);
+    }
+
+    private ParallelFileWalker walker(Predicate<Path> dirFilter) {
+        return walker(dirFilter, (file, attributes) -> visited.add(file));
+    }
+
+    @Test
+    void visitsMatchingFilesInAllDirectories() throws IOException {
+        final Set<Path> expected = ConcurrentHashMap.newKeySet();
+        // more directories than may be forked at once, so that some are walked by the thread that found them
+        for (int i = 0; i < 300; i++) {
+            final Path directory = root.resolve("album-" + (i % 30)).resolve("day-" + i);
+            expected.add(directory.resolve("IMG_" + i + ".jpg"));
+            createFile(directory.resolve("IMG_" + i + ".jpg"));
+            createFile(directory.resolve("notes-" + i + ".txt"));
+        }
+        createFile(root.resolve("ignored").resolve("IMG_0.jpg"));
+
+        final ParallelFileWalker walker = walker(directory -> !directory.getFileName().toString().equals("ignored"));
+        walker.walk(root);
+
+        assertEquals(expected, visited);
+        assertEquals(600, walker.getFiles());
+        assertEquals(1 + 30 + 300, walker.getDirectories());
+        assertEquals(0, walker.getSkipped());
+    }
+
+    @Test
+    void visitsLinkedFilesButNotLinkedDirectories() throws IOException {
+        final Path outside = Files.createDirectory(root.resolve("outside"));
+        createFile(outside.resolve("linked.jpg"));
+        final Path tree = Files.createDirectory(root.resolve("tree"));
+        Files.createSymbolicLink(tree.resolve("file-link.jpg"), outside.resolve("linked.jpg"));
+        Files.createSymbolicLink(tree.resolve("directory-link"), outside);
+        Files.createSymbolicLink(tree.resolve("broken-link.jpg"), outside.resolve("missing.jpg"));
+
+        walker(directory -> true).walk(tree);
+
+        assertEquals(Set.of(tree.resolve("file-link.jpg")), visited);
+    }
+
+    @Test
+    void skipsDirectoriesThatVanishDuringTheWalk() throws IOException {
+        createFile(root.resolve("kept").resolve("IMG_1.jpg"));
+        createFile(root.resolve("vanishing").resolve("IMG_2.jpg"));
+
+        // the directory is removed after it has been found, but before it is listed
+        final ParallelFileWalker walker = walker(directory -> {
+            if (directory.getFileName().toString().equals("vanishing")) {
+                try {
+                    FileUtils.deleteDirectory(directory.toFile());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        });
+        walker.walk(root);
+
+        assertEquals(Set.of(root.resolve("kept").resolve("IMG_1.jpg")), visited);
+        assertEquals(1, walker.getSkipped());
+    }
+
+    @Test
+    void rejectsMissingRoot() {
+        assertThrows(IOException.class, () -> walker(directory -> true).walk(root.resolve("missing")));
+    }
+
+    @Test
+    void rejectsFileAsRoot() throws IOException {
+        final Path file = root.resolve("IMG_1.jpg");
+        createFile(file);
+
+        assertThrows(IOException.class, () -> walker(directory -> true).walk(file));
+    }
+
+    @Test
+    void rethrowsExceptionOfConsumer() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            createFile(root.resolve("album-" + i).resolve("IMG_" + i + ".jpg"));
+        }
+
+        final IllegalStateException failure = new IllegalStateException("consumer failed");
+        final ParallelFileWalker walker = walker(directory -> true, (file, attributes) -> {
+            throw failure;
+        });
+
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> walker.walk(root)));
+    }
+
+    @Test
+    void callsNoConsumerAfterFailedWalkReturned() throws IOException, InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                createFile(root.resolve("album-" + i).resolve("day-" + j).resolve("IMG_" + j + ".jpg"));
+            }
+        }
+
+        final AtomicBoolean returned = new AtomicBoolean();
+        final AtomicInteger lateCalls = new AtomicInteger();
+        final AtomicInteger directories = new AtomicInteger();
+        // the walk fails in the root directory after some of its subdirectories have been forked and are being walked
+        final ParallelFileWalker walker = walker(directory -> {
+            if (directory.getParent().equals(root)) {
+                sleep(10);
+                if (directories.incrementAndGet() == 10) {
+                    throw new IllegalStateException("filter failed");
+                }
+            }
+            return true;
+        }, (file, attributes) -> {
+            sleep(50);
+            if (returned.get()) {
+                lateCalls.incrementAndGet();
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> walker.walk(root));
+        returned.set(true);
+
+        Thread.sleep(200);
+        assertEquals(0, lateCalls.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void rethrowsCauseOfUncheckedIOException() throws IOException {
+        createFile(root.resolve("IMG_1.jpg"));
+
+        final IOException failure = new IOException("consumer failed");
+        final ParallelFileWalker walker = walker(directory -> true, (file, attributes) -> {
+            throw new UncheckedIOException(failure);
+        });
+
+        assertSame(failure, assertThrows(IOException.class, () -> walker.walk(root)));
+    }
+
+    @Test
+    void stopsWhenCancelled() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            createFile(root.resolve("IMG_" + i + ".jpg"));
+        }
+
+        final AtomicReference<ParallelFileWalker> walker = new AtomicReference<>();
+        walker.set(walker(directory -> true, (file, attributes) -> {
+            visited.add(file);
+            walker.get().cancel();
+        }));
+
+        assertThrows(CancellationException.class, () -> walker.get().walk(root));
+        assertTrue(walker.get().isCancelled());
+        assertEquals(1, visited.size());
+    }
+}
@@ -0,0 +1,99 @@
+package de.yanwittmann.gallery.util;
+
+import de.yanwittmann.gallery.media.MediaService;
+import de.yanwittmann.gallery.media.db.MediaRow;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the hashing throughput of the media ids ({@link MediaRow#calculateId(String, int)}, xxHash64) with the
+ * polynomial hash that was used for them before ({@link MediaService#hash(String)}) on synthetic but realistic media
+ * paths, and counts the collisions of both among these paths.
+ * <p>
+ * This is not a test and is not run by the build. Run its main method after {@code mvn test-compile}, with the test
+ * and main classes on the class path, or from the IDE. The amount of paths can be passed as the first argument.
+ */
+public class XxHash64Benchmark {
+
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final String[] paths = createPaths(count, new Random(1));
+
+        long totalLength = 0;
+        for (String path : paths) {
+            totalLength += path.length();
+        }
+        System.out.printf("%d paths, average length %d characters%n", paths.length, totalLength / paths.length);
+
+        long sink = 0;
+        for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (String path : paths) {
+                sink += MediaService.hash(path);
+            }
+            final long polynomialDone = System.nanoTime();
+            for (String path : paths) {
+                sink += MediaRow.calculateId(path, 0);
+            }
+            final long idDone = System.nanoTime();
+            for (String path : paths) {
+                sink += MediaRow.calculateId(path, 0) ^ MediaRow.calculatePathCheck(path);
+            }
+            final long checkDone = System.nanoTime();
+
+            if (round >= WARM_UP_ROUNDS) {
+                System.out.printf("polynomial %s | xxHash64 id %s | id + path check %s%n",
+                        throughput(paths.length, totalLength, polynomialDone - start),
+                        throughput(paths.length, totalLength, idDone - polynomialDone),
+                        throughput(paths.length, totalLength, checkDone - idDone));
+            }
+        }
+
+        final Set<Long> polynomialHashes = new HashSet<>();
+        final Set<Long> ids = new HashSet<>();
+        int polynomialCollisions = 0;
+        int idCollisions = 0;
+        for (String path : paths) {
+            if (!polynomialHashes.add(MediaService.hash(path))) {
+                polynomialCollisions++;
+            }
+            if (!ids.add(MediaRow.calculateId(path, 0))) {
+                idCollisions++;
+            }
+        }
+        System.out.printf("collisions: polynomial %d, xxHash64 %d%n", polynomialCollisions, idCollisions);
+        System.out.printf("\"/photos/Aa.jpg\" and \"/photos/BB.jpg\" collide: polynomial %b, xxHash64 %b%n",
+                MediaService.hash("/photos/Aa.jpg") == MediaService.hash("/photos/BB.jpg"),
+                MediaRow.calculateId("/photos/Aa.jpg", 0) == MediaRow.calculateId("/photos/BB.jpg", 0));
+
+        // keeps the JIT from removing the hashing loops
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Creates paths as they are found in photo libraries: year and album directories with camera file names.
+     */
+    private static String[] createPaths(int count, Random random) {
+        final String[] extensions = {"jpg", "JPG", "png", "mp4", "heic"};
+        final String[] prefixes = {"IMG_", "DSC", "PXL_2023", "VID_"};
+        final String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = "/home/user/Pictures/" + (2000 + random.nextInt(25)) + "/album-" + random.nextInt(500)
+                    + "/" + prefixes[random.nextInt(prefixes.length)] + (10000 + random.nextInt(90000)) + "_" + i
+                    + "." + extensions[random.nextInt(extensions.length)];
+        }
+        return paths;
+    }
+
+    private static String throughput(int count, long totalLength, long nanos) {
+        final double micros = nanos / 1e3;
+        return String.format("%.1f M paths/s (%.0f MB/s)", count / micros, totalLength / micros);
+    }
+}